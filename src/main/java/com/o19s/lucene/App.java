@@ -1,13 +1,73 @@
 package com.o19s.lucene;
 
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
- * Hello world!
- *
+ * Command line entry point.
+ * <p>
+ * Usage:
+ * <pre>
+ * App serve [port] [index directory]
+ *     Run the search server. The index is kept in memory when no directory is given.
+ * App load &lt;server url&gt; &lt;clients&gt; &lt;seconds&gt; &lt;path&gt;...
+ *     Run a closed-loop load test against a server, e.g.
+ *     App load http://localhost:8080 8 30 "/search?q=fox" "/search?type=span&amp;q=quick+fox&amp;slop=1"
+ * </pre>
  */
-public class App 
-{
-    public static void main( String[] args )
-    {
-        System.out.println( "Hello World!" );
+public class App {
+
+    private static final String FIELD_NAME = "f";
+
+    public static void main(String[] args) throws Exception {
+        String command = args.length > 0 ? args[0] : "serve";
+        switch (command) {
+            case "serve":
+                serve(Arrays.copyOfRange(args, Math.min(1, args.length), args.length));
+                break;
+            case "load":
+                load(Arrays.copyOfRange(args, 1, args.length));
+                break;
+            default:
+                System.err.println("Usage: App serve [port] [index directory] | "
+                        + "App load <server url> <clients> <seconds> <path>...");
+                System.exit(1);
+        }
+    }
+
+    private static void serve(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        // To store an index on disk, give its directory
+        Directory directory = args.length > 1 ? FSDirectory.open(Paths.get(args[1])) : new ByteBuffersDirectory();
+
+        final SearchServer server = new SearchServer(directory, new StandardAnalyzer(), FIELD_NAME, port,
+                Runtime.getRuntime().availableProcessors() * 2);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }));
+        server.start();
+        System.out.println(String.format("Search server listening on port %d", server.getPort()));
+    }
+
+    private static void load(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: App load <server url> <clients> <seconds> <path>...");
+            System.exit(1);
+        }
+        List<String> paths = new ArrayList<>(Arrays.asList(args).subList(3, args.length));
+        LoadGenerator generator = new LoadGenerator(args[0], paths, Integer.parseInt(args[1]));
+        LoadGenerator.Report report = generator.run(Long.parseLong(args[2]) * 1000);
+        System.out.println(report);
     }
 }
@@ -0,0 +1,108 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index searcher that runs a batch of queries concurrently on a bounded executor.
+ * <p>
+ * Queries of a batch that are equal to each other (as per {@link Query#equals(Object)}) are rewritten,
+ * weighted and executed only once; all their futures complete with the same {@link TopDocs}.
+ * Each distinct query is executed exactly like {@link IndexSearcher#search(Query, int)} would, so the
+ * returned results keep the same semantics as individual searches.
+ * <p>
+ * Term states are shared between the queries through the reader's {@link TermContextCache}.
+ */
+public class BatchSearcher extends IndexSearcher implements AutoCloseable {
+
+    private final ExecutorService batchExecutor;
+    private final TermContextCache termContextCache;
+
+    /**
+     * @param reader  An index reader.
+     * @param threads Maximum number of queries executed concurrently.
+     */
+    public BatchSearcher(IndexReader reader, int threads) {
+        super(reader);
+        if (threads <= 0) {
+            throw new IllegalArgumentException(String.format("threads must be > 0, got %d", threads));
+        }
+        this.batchExecutor = Executors.newFixedThreadPool(threads);
+        this.termContextCache = TermContextCache.forReader(reader);
+    }
+
+    /**
+     * Search a batch of queries.
+     *
+     * @param queries The queries to execute.
+     * @param n       Number of top hits to return per query.
+     * @return One future per query, in the same order as the queries.
+     */
+    public List<CompletableFuture<TopDocs>> search(List<Query> queries, final int n) {
+        // Share one execution between duplicated queries of the batch
+        Map<Query, CompletableFuture<TopDocs>> distinct = new LinkedHashMap<>();
+        List<CompletableFuture<TopDocs>> futures = new ArrayList<>(queries.size());
+        for (final Query query : queries) {
+            CompletableFuture<TopDocs> future = distinct.get(query);
+            if (future == null) {
+                future = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return searchWithWeight(createWeight(rewrite(termContextCache.apply(query)), true, 1f), n);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, batchExecutor);
+                distinct.put(query, future);
+            }
+            futures.add(future);
+        }
+        return futures;
+    }
+
+    /**
+     * Collect the top hits of an already created weight.
+     *
+     * @param weight Weight of the rewritten query.
+     * @param n      Number of top hits to return.
+     * @return The top hits.
+     * @throws IOException An exception occurred.
+     */
+    TopDocs searchWithWeight(Weight weight, int n) throws IOException {
+        // Same hit count capping as IndexSearcher.searchAfter()
+        int limit = Math.max(1, getIndexReader().maxDoc());
+        TopScoreDocCollector collector = TopScoreDocCollector.create(Math.min(n, limit));
+        search(leafContexts, weight, collector);
+        return collector.topDocs();
+    }
+
+    /**
+     * Stop accepting batches and wait up to a minute for the running queries to complete, then interrupt them.
+     */
+    @Override
+    public void close() {
+        batchExecutor.shutdown();
+        try {
+            if (!batchExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                batchExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            batchExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FilterWeight;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Objects;
+
+/**
+ * Query charging every document visited by the wrapped query to a {@link QueryBudget}.
+ * <p>
+ * For two-phase queries, such as {@link org.apache.lucene.queries.function.FunctionRangeQuery}, the documents
+ * visited by the approximation are charged, including the ones that don't match.
+ */
+public class BudgetedQuery extends Query {
+
+    private final Query in;
+    private final QueryBudget budget;
+
+    public BudgetedQuery(Query in, QueryBudget budget) {
+        this.in = Objects.requireNonNull(in);
+        this.budget = Objects.requireNonNull(budget);
+    }
+
+    public Query getQuery() {
+        return in;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        Query rewritten = in.rewrite(reader);
+        if (rewritten != in) {
+            return budget.wrap(rewritten);
+        }
+        return this;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores, float boost) throws IOException {
+        final Weight inWeight = in.createWeight(searcher, needsScores, boost);
+        return new FilterWeight(this, inWeight) {
+            @Override
+            public Scorer scorer(LeafReaderContext context) throws IOException {
+                Scorer scorer = inWeight.scorer(context);
+                return scorer == null ? null : new BudgetedScorer(this, scorer, budget);
+            }
+
+            @Override
+            public boolean isCacheable(LeafReaderContext ctx) {
+                // The budget is specific to a single search
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public String toString(String field) {
+        return String.format("budgeted(%s)", in.toString(field));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other)
+                && in.equals(((BudgetedQuery) other).in)
+                && budget == ((BudgetedQuery) other).budget;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * classHash() + in.hashCode();
+    }
+
+    /**
+     * Scorer charging the documents visited by its iterator to a budget.
+     */
+    private static class BudgetedScorer extends Scorer {
+
+        private final Scorer in;
+        private final DocIdSetIterator iterator;
+        private final TwoPhaseIterator twoPhaseIterator;
+
+        BudgetedScorer(Weight weight, Scorer in, QueryBudget budget) {
+            super(weight);
+            this.in = in;
+            final TwoPhaseIterator inTwoPhase = in.twoPhaseIterator();
+            if (inTwoPhase == null) {
+                this.twoPhaseIterator = null;
+                this.iterator = new QueryBudget.BudgetedDocIdSetIterator(in.iterator(), budget);
+            } else {
+                this.twoPhaseIterator = new TwoPhaseIterator(
+                        new QueryBudget.BudgetedDocIdSetIterator(inTwoPhase.approximation(), budget)) {
+                    @Override
+                    public boolean matches() throws IOException {
+                        return inTwoPhase.matches();
+                    }
+
+                    @Override
+                    public float matchCost() {
+                        return inTwoPhase.matchCost();
+                    }
+                };
+                this.iterator = TwoPhaseIterator.asDocIdSetIterator(twoPhaseIterator);
+            }
+        }
+
+        @Override
+        public int docID() {
+            return in.docID();
+        }
+
+        @Override
+        public float score() throws IOException {
+            return in.score();
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return iterator;
+        }
+
+        @Override
+        public TwoPhaseIterator twoPhaseIterator() {
+            return twoPhaseIterator;
+        }
+
+        @Override
+        public Collection<ChildScorer> getChildren() {
+            return Collections.singleton(new ChildScorer(in, "BUDGETED"));
+        }
+    }
+}
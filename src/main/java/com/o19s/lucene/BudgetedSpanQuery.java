@@ -0,0 +1,188 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.spans.SpanCollector;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanWeight;
+import org.apache.lucene.search.spans.Spans;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Span query charging every document and every position visited by the wrapped span query to a
+ * {@link QueryBudget}. Used as the leaves of span trees, it's checked from within the iteration of the enclosing
+ * span near/or/not queries.
+ */
+public class BudgetedSpanQuery extends SpanQuery {
+
+    private final SpanQuery in;
+    private final QueryBudget budget;
+
+    public BudgetedSpanQuery(SpanQuery in, QueryBudget budget) {
+        this.in = Objects.requireNonNull(in);
+        this.budget = Objects.requireNonNull(budget);
+    }
+
+    public SpanQuery getQuery() {
+        return in;
+    }
+
+    @Override
+    public String getField() {
+        return in.getField();
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        Query rewritten = in.rewrite(reader);
+        if (rewritten != in) {
+            return budget.wrap((SpanQuery) rewritten);
+        }
+        return this;
+    }
+
+    @Override
+    public SpanWeight createWeight(IndexSearcher searcher, boolean needsScores, float boost) throws IOException {
+        final SpanWeight inWeight = in.createWeight(searcher, needsScores, boost);
+        return new SpanWeight(this, searcher, needsScores ? getTermContexts(inWeight) : null, boost) {
+            @Override
+            public void extractTermContexts(Map<Term, TermContext> contexts) {
+                inWeight.extractTermContexts(contexts);
+            }
+
+            @Override
+            public Spans getSpans(LeafReaderContext ctx, Postings requiredPostings) throws IOException {
+                Spans spans = inWeight.getSpans(ctx, requiredPostings);
+                return spans == null ? null : new BudgetedSpans(spans, budget);
+            }
+
+            @Override
+            public void extractTerms(Set<Term> terms) {
+                inWeight.extractTerms(terms);
+            }
+
+            @Override
+            public boolean isCacheable(LeafReaderContext ctx) {
+                // The budget is specific to a single search
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public String toString(String field) {
+        return String.format("budgeted(%s)", in.toString(field));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other)
+                && in.equals(((BudgetedSpanQuery) other).in)
+                && budget == ((BudgetedSpanQuery) other).budget;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * classHash() + in.hashCode();
+    }
+
+    /**
+     * Spans charging each visited document and position to a budget.
+     */
+    private static class BudgetedSpans extends Spans {
+
+        private final Spans in;
+        private final QueryBudget budget;
+
+        BudgetedSpans(Spans in, QueryBudget budget) {
+            this.in = in;
+            this.budget = budget;
+        }
+
+        @Override
+        public int nextStartPosition() throws IOException {
+            budget.visit();
+            return in.nextStartPosition();
+        }
+
+        @Override
+        public int startPosition() {
+            return in.startPosition();
+        }
+
+        @Override
+        public int endPosition() {
+            return in.endPosition();
+        }
+
+        @Override
+        public int width() {
+            return in.width();
+        }
+
+        @Override
+        public void collect(SpanCollector collector) throws IOException {
+            in.collect(collector);
+        }
+
+        @Override
+        public float positionsCost() {
+            return in.positionsCost();
+        }
+
+        @Override
+        public TwoPhaseIterator asTwoPhaseIterator() {
+            final TwoPhaseIterator inTwoPhase = in.asTwoPhaseIterator();
+            if (inTwoPhase == null) {
+                return null;
+            }
+            return new TwoPhaseIterator(new QueryBudget.BudgetedDocIdSetIterator(inTwoPhase.approximation(), budget)) {
+                @Override
+                public boolean matches() throws IOException {
+                    return inTwoPhase.matches();
+                }
+
+                @Override
+                public float matchCost() {
+                    return inTwoPhase.matchCost();
+                }
+            };
+        }
+
+        @Override
+        public int docID() {
+            return in.docID();
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            budget.visit();
+            return in.nextDoc();
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            budget.visit();
+            return in.advance(target);
+        }
+
+        @Override
+        public long cost() {
+            return in.cost();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("budgeted(%s)", in);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.IndexOptions;
+
+/**
+ * Declarative indexing configuration of a single field: analyzer, index options, term vectors, doc values
+ * and postings format. Fields are grouped in an {@link IndexProfile}.
+ * <p>
+ * Setters return this profile so that they can be chained.
+ */
+public class FieldProfile {
+
+    /**
+     * Name of the memory-resident postings format shipped in lucene-codecs.
+     */
+    public static final String MEMORY_POSTINGS_FORMAT = "Memory";
+
+    private final String name;
+    private Analyzer analyzer;
+    private IndexOptions indexOptions = IndexOptions.DOCS_AND_FREQS_AND_POSITIONS;
+    private boolean tokenized = true;
+    private boolean stored = true;
+    private boolean omitNorms = false;
+    private boolean termVectors = false;
+    private boolean termVectorPositions = false;
+    private boolean termVectorOffsets = false;
+    private DocValuesType docValuesType = DocValuesType.NONE;
+    private String postingsFormat;
+
+    public FieldProfile(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Stored text field with positions and term vectors with positions and offsets, as indexed by the tests.
+     * Required by the {@link org.apache.lucene.search.vectorhighlight.FastVectorHighlighter}.
+     *
+     * @param name Field name.
+     * @return The field profile.
+     */
+    public static FieldProfile vectorHighlightedText(String name) {
+        return new FieldProfile(name)
+                .setTermVectors(true)
+                .setTermVectorPositions(true)
+                .setTermVectorOffsets(true);
+    }
+
+    /**
+     * Stored text field with positions and offsets in the postings, without term vectors.
+     * Highlighted by {@link HighlighterFactory#newPostingsHighlighter}.
+     *
+     * @param name Field name.
+     * @return The field profile.
+     */
+    public static FieldProfile postingsHighlightedText(String name) {
+        return new FieldProfile(name)
+                .setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+    }
+
+    /**
+     * Stored text field with positions, without term vectors.
+     *
+     * @param name Field name.
+     * @return The field profile.
+     */
+    public static FieldProfile text(String name) {
+        return new FieldProfile(name);
+    }
+
+    /**
+     * Stored, untokenized identifier field, with its postings kept in memory.
+     *
+     * @param name Field name.
+     * @return The field profile.
+     */
+    public static FieldProfile id(String name) {
+        return new FieldProfile(name)
+                .setTokenized(false)
+                .setIndexOptions(IndexOptions.DOCS)
+                .setOmitNorms(true)
+                .setPostingsFormat(MEMORY_POSTINGS_FORMAT);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The field's analyzer, or null to use the index's default analyzer.
+     */
+    public Analyzer getAnalyzer() {
+        return analyzer;
+    }
+
+    public FieldProfile setAnalyzer(Analyzer analyzer) {
+        this.analyzer = analyzer;
+        return this;
+    }
+
+    public IndexOptions getIndexOptions() {
+        return indexOptions;
+    }
+
+    public FieldProfile setIndexOptions(IndexOptions indexOptions) {
+        this.indexOptions = indexOptions;
+        return this;
+    }
+
+    public boolean isTokenized() {
+        return tokenized;
+    }
+
+    public FieldProfile setTokenized(boolean tokenized) {
+        this.tokenized = tokenized;
+        return this;
+    }
+
+    public boolean isStored() {
+        return stored;
+    }
+
+    public FieldProfile setStored(boolean stored) {
+        this.stored = stored;
+        return this;
+    }
+
+    public boolean isOmitNorms() {
+        return omitNorms;
+    }
+
+    public FieldProfile setOmitNorms(boolean omitNorms) {
+        this.omitNorms = omitNorms;
+        return this;
+    }
+
+    public boolean isTermVectors() {
+        return termVectors;
+    }
+
+    public FieldProfile setTermVectors(boolean termVectors) {
+        this.termVectors = termVectors;
+        return this;
+    }
+
+    public boolean isTermVectorPositions() {
+        return termVectorPositions;
+    }
+
+    public FieldProfile setTermVectorPositions(boolean termVectorPositions) {
+        this.termVectorPositions = termVectorPositions;
+        return this;
+    }
+
+    public boolean isTermVectorOffsets() {
+        return termVectorOffsets;
+    }
+
+    public FieldProfile setTermVectorOffsets(boolean termVectorOffsets) {
+        this.termVectorOffsets = termVectorOffsets;
+        return this;
+    }
+
+    public DocValuesType getDocValuesType() {
+        return docValuesType;
+    }
+
+    /**
+     * @param docValuesType One of NONE, BINARY, SORTED or SORTED_SET: the field value is indexed as is.
+     * @return This profile.
+     */
+    public FieldProfile setDocValuesType(DocValuesType docValuesType) {
+        if (docValuesType == DocValuesType.NUMERIC || docValuesType == DocValuesType.SORTED_NUMERIC) {
+            throw new IllegalArgumentException(String.format("Unsupported doc values type: %s", docValuesType));
+        }
+        this.docValuesType = docValuesType;
+        return this;
+    }
+
+    /**
+     * @return The name of the field's postings format, or null to use the codec's default format.
+     */
+    public String getPostingsFormat() {
+        return postingsFormat;
+    }
+
+    public FieldProfile setPostingsFormat(String postingsFormat) {
+        this.postingsFormat = postingsFormat;
+        return this;
+    }
+
+    /**
+     * @return The field type of the indexed (and stored) field.
+     */
+    public FieldType toFieldType() {
+        FieldType fieldType = new FieldType();
+        fieldType.setStored(stored);
+        fieldType.setTokenized(tokenized);
+        fieldType.setIndexOptions(indexOptions);
+        fieldType.setOmitNorms(omitNorms);
+        fieldType.setStoreTermVectors(termVectors);
+        fieldType.setStoreTermVectorPositions(termVectorPositions);
+        fieldType.setStoreTermVectorOffsets(termVectorOffsets);
+        fieldType.freeze();
+        return fieldType;
+    }
+}
@@ -0,0 +1,95 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
+import org.apache.lucene.search.vectorhighlight.*;
+
+/**
+ * Highlighters configured for the project's indexes.
+ * <p>
+ * The fast vector highlighter requires term vectors with positions and offsets
+ * ({@link FieldProfile#vectorHighlightedText(String)}). The postings highlighter reads the offsets stored in the
+ * postings instead ({@link FieldProfile#postingsHighlightedText(String)}), which is a lot cheaper to index.
+ */
+public class HighlighterFactory {
+
+    private HighlighterFactory() {
+    }
+
+    /**
+     * Instantiate a fast vector highlighter.
+     *
+     * @return The instantiated highlighter.
+     */
+    public static FastVectorHighlighter newFastVectorHighlighter() {
+        FragListBuilder fragListBuilder = new SimpleFragListBuilder();
+        FragmentsBuilder fragmentBuilder =
+                new ScoreOrderFragmentsBuilder(
+                        BaseFragmentsBuilder.COLORED_PRE_TAGS,
+                        BaseFragmentsBuilder.COLORED_POST_TAGS);
+        return new FastVectorHighlighter(true, true,
+                fragListBuilder, fragmentBuilder);
+    }
+
+    /**
+     * Instantiate a unified highlighter, picking the offset source from the field's index options.
+     *
+     * @param indexSearcher An index searcher.
+     * @param indexAnalyzer The index analyzer.
+     * @return The instantiated highlighter.
+     */
+    public static UnifiedHighlighter newUnifiedHighlighter(IndexSearcher indexSearcher, Analyzer indexAnalyzer) {
+        UnifiedHighlighter highlighter = new UnifiedHighlighter(indexSearcher, indexAnalyzer);
+        highlighter.setHighlightPhrasesStrictly(true);
+        return highlighter;
+    }
+
+    /**
+     * Instantiate a unified highlighter reading the offsets from the postings: neither term vectors nor
+     * re-analysis are used. The highlighted fields must be indexed with
+     * {@link org.apache.lucene.index.IndexOptions#DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS}.
+     *
+     * @param indexSearcher An index searcher.
+     * @param indexAnalyzer The index analyzer.
+     * @return The instantiated highlighter.
+     */
+    public static UnifiedHighlighter newPostingsHighlighter(IndexSearcher indexSearcher, Analyzer indexAnalyzer) {
+        UnifiedHighlighter highlighter = new UnifiedHighlighter(indexSearcher, indexAnalyzer) {
+            @Override
+            protected OffsetSource getOffsetSource(String field) {
+                return OffsetSource.POSTINGS;
+            }
+        };
+        highlighter.setHighlightPhrasesStrictly(true);
+        return highlighter;
+    }
+
+    /**
+     * Memory budget of the token cache of {@link #newSpanHighlighter(Analyzer)}.
+     */
+    public static final long DEFAULT_TOKEN_CACHE_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Instantiate a highlighter of the span matches of the top hits collected by a {@link SpanMatchCollector}, with
+     * its own token cache. The highlighter should be reused across searches, so that the hits highlighted again
+     * replay their cached tokens instead of being re-analyzed when the postings don't store offsets.
+     *
+     * @param indexAnalyzer The index analyzer.
+     * @return The instantiated highlighter.
+     */
+    public static SpanHighlighter newSpanHighlighter(Analyzer indexAnalyzer) {
+        return newSpanHighlighter(indexAnalyzer, new TokenCache(indexAnalyzer, DEFAULT_TOKEN_CACHE_BYTES));
+    }
+
+    /**
+     * Instantiate a highlighter of the span matches of the top hits collected by a {@link SpanMatchCollector}.
+     *
+     * @param indexAnalyzer The index analyzer.
+     * @param tokenCache    Cache of the hits' tokens, using the index analyzer.
+     * @return The instantiated highlighter.
+     */
+    public static SpanHighlighter newSpanHighlighter(Analyzer indexAnalyzer, TokenCache tokenCache) {
+        return new SpanHighlighter(indexAnalyzer, "<b>", "</b>", 100, tokenCache);
+    }
+}
@@ -0,0 +1,396 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Apply a stream of add/update/delete events, keyed by document id, to an index.
+ * <p>
+ * Events are buffered and applied in batches through {@link IndexWriter#updateDocument} (or
+ * {@link IndexWriter#softUpdateDocument} when soft deletes are enabled). After each batch the near-real-time
+ * searcher is refreshed, and the index is committed once enough operations or enough time have accumulated
+ * since the last commit. The delay between an event being submitted and it being visible to the searchers is
+ * tracked in {@link #getVisibilityLatency()}.
+ * <p>
+ * Events that don't fill a batch aren't left behind when the event rate is low: a background flush applies them
+ * once the oldest one is older than the maximum batch delay ({@link #setMaxBatchDelay(long)}), and commits once the
+ * commit interval elapsed. The methods are synchronized with the background flush; the events should be submitted
+ * by a single thread to be applied in order.
+ */
+public class IncrementalIndexer implements Closeable {
+
+    public static final String ID_FIELD = "id";
+    public static final String SOFT_DELETES_FIELD = "__soft_deletes";
+    public static final long DEFAULT_MAX_BATCH_DELAY_MILLIS = 1000;
+
+    /**
+     * A change to a single document.
+     */
+    public static class Event {
+
+        public enum Type {ADD, UPDATE, DELETE}
+
+        private final Type type;
+        private final String id;
+        private final String text;
+        private final long createdNanos;
+
+        private Event(Type type, String id, String text) {
+            this.type = type;
+            this.id = id;
+            this.text = text;
+            this.createdNanos = System.nanoTime();
+        }
+
+        public static Event add(String id, String text) {
+            return new Event(Type.ADD, id, text);
+        }
+
+        public static Event update(String id, String text) {
+            return new Event(Type.UPDATE, id, text);
+        }
+
+        public static Event delete(String id) {
+            return new Event(Type.DELETE, id, null);
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * Latency statistics, in milliseconds.
+     */
+    public static class LatencyStats {
+
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        synchronized void record(long nanos) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized double getMeanMillis() {
+            return count == 0 ? 0 : totalNanos / (count * 1e6);
+        }
+
+        public synchronized double getMaxMillis() {
+            return maxNanos / 1e6;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("count=%d, mean=%.3fms, max=%.3fms", count, getMeanMillis(), getMaxMillis());
+        }
+    }
+
+    private final String fieldname;
+    private final FieldType textFieldType;
+    private final boolean softDeletes;
+    private final int batchSize;
+    private final int commitEveryOps;
+    private final long commitIntervalMillis;
+
+    private final IndexWriter writer;
+    private final SearcherManager searcherManager;
+    private final LatencyStats visibilityLatency = new LatencyStats();
+
+    private final List<Event> pending = new ArrayList<>();
+    private int uncommittedOps;
+    private long lastCommitMillis = System.currentTimeMillis();
+
+    private final ScheduledExecutorService flushScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "IncrementalIndexer flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledFuture<?> scheduledFlush;
+    private long maxBatchDelayMillis;
+    private Exception flushFailure;
+
+    /**
+     * @param directory            Index directory.
+     * @param analyzer             Analyzer of the text field.
+     * @param fieldname            Text field name.
+     * @param softDeletes          True to use soft deletes instead of hard deletes.
+     * @param batchSize            Number of buffered events that triggers a batch.
+     * @param commitEveryOps       Number of applied events that triggers a commit.
+     * @param commitIntervalMillis Delay since the last commit that triggers a commit.
+     * @throws IOException An exception occurred.
+     */
+    public IncrementalIndexer(Directory directory, Analyzer analyzer, String fieldname, boolean softDeletes,
+                              int batchSize, int commitEveryOps, long commitIntervalMillis) throws IOException {
+        this(directory, new IndexWriterConfig(analyzer), fieldname, softDeletes,
+                batchSize, commitEveryOps, commitIntervalMillis, new SearcherFactory());
+    }
+
+    /**
+     * @param directory            Index directory.
+     * @param config               Index writer configuration.
+     * @param fieldname            Text field name.
+     * @param softDeletes          True to use soft deletes instead of hard deletes.
+     * @param batchSize            Number of buffered events that triggers a batch.
+     * @param commitEveryOps       Number of applied events that triggers a commit.
+     * @param commitIntervalMillis Delay since the last commit that triggers a commit.
+     * @param searcherFactory      Factory of the near-real-time searchers.
+     * @throws IOException An exception occurred.
+     */
+    public IncrementalIndexer(Directory directory, IndexWriterConfig config, String fieldname, boolean softDeletes,
+                              int batchSize, int commitEveryOps, long commitIntervalMillis,
+                              SearcherFactory searcherFactory) throws IOException {
+        // Same configuration as the text fields indexed by the tests
+        this(directory, config, FieldProfile.vectorHighlightedText(fieldname), softDeletes,
+                batchSize, commitEveryOps, commitIntervalMillis, searcherFactory);
+    }
+
+    /**
+     * @param directory            Index directory.
+     * @param config               Index writer configuration.
+     * @param textProfile          Profile of the text field, e.g. {@link FieldProfile#postingsHighlightedText} to
+     *                             highlight with the offsets of the postings rather than with term vectors.
+     * @param softDeletes          True to use soft deletes instead of hard deletes.
+     * @param batchSize            Number of buffered events that triggers a batch.
+     * @param commitEveryOps       Number of applied events that triggers a commit.
+     * @param commitIntervalMillis Delay since the last commit that triggers a commit.
+     * @param searcherFactory      Factory of the near-real-time searchers.
+     * @throws IOException An exception occurred.
+     */
+    public IncrementalIndexer(Directory directory, IndexWriterConfig config, FieldProfile textProfile,
+                              boolean softDeletes, int batchSize, int commitEveryOps, long commitIntervalMillis,
+                              SearcherFactory searcherFactory) throws IOException {
+        if (batchSize <= 0 || commitEveryOps <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "batchSize and commitEveryOps must be > 0, got %d and %d", batchSize, commitEveryOps));
+        }
+        this.fieldname = textProfile.getName();
+        this.textFieldType = textProfile.toFieldType();
+        this.softDeletes = softDeletes;
+        this.batchSize = batchSize;
+        this.commitEveryOps = commitEveryOps;
+        this.commitIntervalMillis = commitIntervalMillis;
+
+        if (softDeletes) {
+            config.setSoftDeletesField(SOFT_DELETES_FIELD);
+        }
+        this.writer = new IndexWriter(directory, config);
+        this.searcherManager = new SearcherManager(writer, searcherFactory);
+        setMaxBatchDelay(DEFAULT_MAX_BATCH_DELAY_MILLIS);
+    }
+
+    /**
+     * @param millis Age of the oldest buffered event that triggers a batch, even though the batch isn't full.
+     * @return This indexer.
+     */
+    public synchronized IncrementalIndexer setMaxBatchDelay(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException(String.format("millis must be > 0, got %d", millis));
+        }
+        this.maxBatchDelayMillis = millis;
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+        }
+        // The pending events are applied at most a quarter of the delay late
+        long period = Math.max(1, millis / 4);
+        scheduledFlush = flushScheduler.scheduleWithFixedDelay(this::flushIfDue, period, period,
+                TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Submit a stream of events.
+     *
+     * @param events The events.
+     * @throws IOException An exception occurred.
+     */
+    public void index(Iterable<Event> events) throws IOException {
+        for (Event event : events) {
+            index(event);
+        }
+    }
+
+    /**
+     * Submit an event. It's applied when the current batch is full, or when {@link #flush()} is called.
+     *
+     * @param event The event.
+     * @throws IOException An exception occurred.
+     */
+    public synchronized void index(Event event) throws IOException {
+        checkFlushFailure();
+        pending.add(event);
+        if (pending.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Apply the buffered events, make them visible to the searchers, and commit if a threshold is reached.
+     *
+     * @throws IOException An exception occurred.
+     */
+    public synchronized void flush() throws IOException {
+        checkFlushFailure();
+        applyPending();
+        if (uncommittedOps >= commitEveryOps
+                || (uncommittedOps > 0 && System.currentTimeMillis() - lastCommitMillis >= commitIntervalMillis)) {
+            commit();
+        }
+    }
+
+    /**
+     * Apply the buffered events and commit.
+     *
+     * @throws IOException An exception occurred.
+     */
+    public synchronized void commit() throws IOException {
+        checkFlushFailure();
+        applyPending();
+        writer.commit();
+        uncommittedOps = 0;
+        lastCommitMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Background flush: apply the buffered events once the oldest one is too old, and commit once the commit
+     * interval elapsed.
+     */
+    private synchronized void flushIfDue() {
+        if (flushFailure != null) {
+            return;
+        }
+        try {
+            if ((!pending.isEmpty()
+                    && System.nanoTime() - pending.get(0).createdNanos >= maxBatchDelayMillis * 1000000)
+                    || (uncommittedOps > 0 && System.currentTimeMillis() - lastCommitMillis >= commitIntervalMillis)) {
+                flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Reported to the submitting thread, rather than cancelling the scheduled flushes silently
+            flushFailure = e;
+        }
+    }
+
+    private void checkFlushFailure() throws IOException {
+        if (flushFailure != null) {
+            throw new IOException("The background flush failed", flushFailure);
+        }
+    }
+
+    private void applyPending() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        for (Event event : pending) {
+            apply(event);
+        }
+        uncommittedOps += pending.size();
+
+        searcherManager.maybeRefreshBlocking();
+        long now = System.nanoTime();
+        for (Event event : pending) {
+            visibilityLatency.record(now - event.createdNanos);
+        }
+        pending.clear();
+    }
+
+    private void apply(Event event) throws IOException {
+        Term idTerm = new Term(ID_FIELD, event.getId());
+        switch (event.getType()) {
+            case ADD:
+            case UPDATE:
+                Document doc = new Document();
+                doc.add(new StringField(ID_FIELD, event.getId(), Field.Store.YES));
+                doc.add(new Field(fieldname, event.getText(), textFieldType));
+                if (softDeletes) {
+                    writer.softUpdateDocument(idTerm, doc, new NumericDocValuesField(SOFT_DELETES_FIELD, 1));
+                } else {
+                    writer.updateDocument(idTerm, doc);
+                }
+                break;
+            case DELETE:
+                if (softDeletes) {
+                    writer.updateDocValues(idTerm, new NumericDocValuesField(SOFT_DELETES_FIELD, 1));
+                } else {
+                    writer.deleteDocuments(idTerm);
+                }
+                break;
+        }
+    }
+
+    /**
+     * @return The near-real-time searcher manager.
+     */
+    public SearcherManager getSearcherManager() {
+        return searcherManager;
+    }
+
+    /**
+     * @return The index writer.
+     */
+    public IndexWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * @return Delay between the submission of the events and their visibility to the searchers.
+     */
+    public LatencyStats getVisibilityLatency() {
+        return visibilityLatency;
+    }
+
+    /**
+     * Stop the background flush, commit the pending events and close the index.
+     */
+    @Override
+    public void close() throws IOException {
+        // Not interrupted, which would close the index files a running flush is writing to
+        flushScheduler.shutdown();
+        try {
+            flushScheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                commit();
+            } finally {
+                searcherManager.close();
+                writer.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.lucene70.Lucene70Codec;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.util.BytesRef;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-field indexing configuration of an index.
+ * <p>
+ * The analyzers of the fields are wired through a {@link PerFieldAnalyzerWrapper}, and their postings formats
+ * through a codec that delegates to the default codec for the other fields.
+ */
+public class IndexProfile {
+
+    private final Analyzer defaultAnalyzer;
+    private final Map<String, FieldProfile> fields = new LinkedHashMap<>();
+    private final Map<String, FieldType> fieldTypes = new HashMap<>();
+
+    /**
+     * @param defaultAnalyzer Analyzer of the fields that don't define their own.
+     */
+    public IndexProfile(Analyzer defaultAnalyzer) {
+        this.defaultAnalyzer = defaultAnalyzer;
+    }
+
+    /**
+     * Add a field to the profile. The field's configuration must not be changed afterwards.
+     *
+     * @param field The field profile.
+     * @return This profile.
+     */
+    public IndexProfile add(FieldProfile field) {
+        fields.put(field.getName(), field);
+        fieldTypes.put(field.getName(), field.toFieldType());
+        return this;
+    }
+
+    public FieldProfile get(String name) {
+        return fields.get(name);
+    }
+
+    public Collection<FieldProfile> getFields() {
+        return fields.values();
+    }
+
+    /**
+     * @return The analyzer dispatching each field to its own analyzer.
+     */
+    public Analyzer getAnalyzer() {
+        Map<String, Analyzer> analyzers = new HashMap<>();
+        for (FieldProfile field : fields.values()) {
+            if (field.getAnalyzer() != null) {
+                analyzers.put(field.getName(), field.getAnalyzer());
+            }
+        }
+        return new PerFieldAnalyzerWrapper(defaultAnalyzer, analyzers);
+    }
+
+    /**
+     * @return The codec writing each field with its own postings format.
+     */
+    public Codec getCodec() {
+        final Map<String, PostingsFormat> postingsFormats = new HashMap<>();
+        for (FieldProfile field : fields.values()) {
+            if (field.getPostingsFormat() != null) {
+                postingsFormats.put(field.getName(), PostingsFormat.forName(field.getPostingsFormat()));
+            }
+        }
+        return new Lucene70Codec() {
+            @Override
+            public PostingsFormat getPostingsFormatForField(String field) {
+                PostingsFormat postingsFormat = postingsFormats.get(field);
+                return postingsFormat != null ? postingsFormat : super.getPostingsFormatForField(field);
+            }
+        };
+    }
+
+    /**
+     * @return A new index writer configuration using the profile's analyzer and codec.
+     */
+    public IndexWriterConfig newIndexWriterConfig() {
+        IndexWriterConfig config = new IndexWriterConfig(getAnalyzer());
+        config.setCodec(getCodec());
+        return config;
+    }
+
+    /**
+     * Create a document.
+     *
+     * @param values Field values, by field name. All the fields must be part of the profile.
+     * @return The document.
+     */
+    public Document newDocument(Map<String, String> values) {
+        Document doc = new Document();
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            FieldProfile field = fields.get(value.getKey());
+            if (field == null) {
+                throw new IllegalArgumentException(String.format("Unknown field: %s", value.getKey()));
+            }
+            doc.add(new Field(field.getName(), value.getValue(), fieldTypes.get(field.getName())));
+            switch (field.getDocValuesType()) {
+                case BINARY:
+                    doc.add(new BinaryDocValuesField(field.getName(), new BytesRef(value.getValue())));
+                    break;
+                case SORTED:
+                    doc.add(new SortedDocValuesField(field.getName(), new BytesRef(value.getValue())));
+                    break;
+                case SORTED_SET:
+                    doc.add(new SortedSetDocValuesField(field.getName(), new BytesRef(value.getValue())));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return doc;
+    }
+}
@@ -0,0 +1,206 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warm readers before they are published, so that the first user queries don't pay for cold index structures.
+ * <p>
+ * Warming touches the terms index, the norms and the doc values of every field, then replays a set of
+ * representative queries. It's used both as a {@link SearcherFactory}, for the readers opened by a
+ * {@link org.apache.lucene.search.SearcherManager}, and as the merged segment warmer of an {@link IndexWriter},
+ * for the segments produced by merges before they are visible to near-real-time readers.
+ * <p>
+ * A reopened reader only gets its new segments warmed: the segments it shares with the previous reader, and the
+ * merged segments the writer already warmed, are skipped, so that a refresh costs in proportion to what changed
+ * rather than to the size of the index.
+ */
+public class IndexWarmer extends SearcherFactory implements IndexWriter.IndexReaderWarmer {
+
+    private final List<Query> queries;
+    private final int numHits;
+    private final AtomicLong warmCount = new AtomicLong();
+    private final AtomicLong warmedSegmentCount = new AtomicLong();
+    // Core keys of the merged segments warmed by the writer and not yet seen by a reopened reader
+    private final Set<IndexReader.CacheKey> warmedMergedSegments = ConcurrentHashMap.newKeySet();
+    private final AtomicLong warmNanos = new AtomicLong();
+
+    /**
+     * @param queries Representative queries replayed on each new reader.
+     * @param numHits Number of top hits collected by each warming query.
+     */
+    public IndexWarmer(List<Query> queries, int numHits) {
+        this.queries = new ArrayList<>(queries);
+        this.numHits = numHits;
+    }
+
+    /**
+     * Use this warmer for the segments merged by the writer.
+     *
+     * @param config Index writer configuration.
+     * @return The configuration.
+     */
+    public IndexWriterConfig install(IndexWriterConfig config) {
+        config.setMergedSegmentWarmer(this);
+        return config;
+    }
+
+    @Override
+    public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) throws IOException {
+        IndexSearcher searcher = super.newSearcher(reader, previousReader);
+        long start = System.nanoTime();
+        Set<IndexReader.CacheKey> previousSegments = new HashSet<>();
+        if (previousReader != null) {
+            for (LeafReaderContext context : previousReader.leaves()) {
+                IndexReader.CacheHelper cacheHelper = context.reader().getCoreCacheHelper();
+                if (cacheHelper != null) {
+                    previousSegments.add(cacheHelper.getKey());
+                }
+            }
+        }
+        for (LeafReaderContext context : reader.leaves()) {
+            IndexReader.CacheHelper cacheHelper = context.reader().getCoreCacheHelper();
+            if (cacheHelper == null || (!previousSegments.contains(cacheHelper.getKey())
+                    && !warmedMergedSegments.remove(cacheHelper.getKey()))) {
+                warmSegment(context.reader());
+            }
+        }
+        record(start);
+        return searcher;
+    }
+
+    @Override
+    public void warm(LeafReader reader) throws IOException {
+        long start = System.nanoTime();
+        warmSegment(reader);
+        IndexReader.CacheHelper cacheHelper = reader.getCoreCacheHelper();
+        if (cacheHelper != null) {
+            warmedMergedSegments.add(cacheHelper.getKey());
+            cacheHelper.addClosedListener(warmedMergedSegments::remove);
+        }
+        record(start);
+    }
+
+    /**
+     * @return Number of warmed readers and merged segments.
+     */
+    public long getWarmCount() {
+        return warmCount.get();
+    }
+
+    /**
+     * @return Number of segments warmed, over all the readers and merged segments.
+     */
+    public long getWarmedSegmentCount() {
+        return warmedSegmentCount.get();
+    }
+
+    /**
+     * @return Total time spent warming, in milliseconds.
+     */
+    public double getWarmMillis() {
+        return warmNanos.get() / 1e6;
+    }
+
+    private void record(long start) {
+        warmCount.incrementAndGet();
+        warmNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Touch the index structures of a segment, then replay the queries on it.
+     */
+    private void warmSegment(LeafReader reader) throws IOException {
+        touch(reader);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        for (Query query : queries) {
+            searcher.search(query, numHits);
+        }
+        warmedSegmentCount.incrementAndGet();
+    }
+
+    /**
+     * Load the terms index, norms and doc values of all the fields of a segment.
+     *
+     * @param reader A segment reader.
+     * @throws IOException An exception occurred.
+     */
+    private void touch(LeafReader reader) throws IOException {
+        for (FieldInfo fieldInfo : reader.getFieldInfos()) {
+            if (fieldInfo.getIndexOptions() != IndexOptions.NONE) {
+                Terms terms = reader.terms(fieldInfo.name);
+                if (terms != null) {
+                    terms.iterator().next();
+                }
+            }
+            if (fieldInfo.hasNorms()) {
+                consume(reader.getNormValues(fieldInfo.name));
+            }
+            if (fieldInfo.getDocValuesType() == DocValuesType.NUMERIC) {
+                consume(reader.getNumericDocValues(fieldInfo.name));
+            } else if (fieldInfo.getDocValuesType() == DocValuesType.BINARY) {
+                consume(reader.getBinaryDocValues(fieldInfo.name));
+            } else if (fieldInfo.getDocValuesType() == DocValuesType.SORTED) {
+                consume(reader.getSortedDocValues(fieldInfo.name));
+            } else if (fieldInfo.getDocValuesType() == DocValuesType.SORTED_NUMERIC) {
+                consume(reader.getSortedNumericDocValues(fieldInfo.name));
+            } else if (fieldInfo.getDocValuesType() == DocValuesType.SORTED_SET) {
+                consume(reader.getSortedSetDocValues(fieldInfo.name));
+            }
+        }
+    }
+
+    private static void consume(DocIdSetIterator iterator) throws IOException {
+        if (iterator != null) {
+            while (iterator.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                // Iterating pages the doc ids in
+            }
+        }
+    }
+
+    private static void consume(NumericDocValues values) throws IOException {
+        if (values != null) {
+            while (values.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                values.longValue();
+            }
+        }
+    }
+
+    private static void consume(BinaryDocValues values) throws IOException {
+        if (values != null) {
+            while (values.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                values.binaryValue();
+            }
+        }
+    }
+
+    private static void consume(SortedDocValues values) throws IOException {
+        if (values != null) {
+            while (values.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                values.ordValue();
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.o19s.lucene;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closed-loop load generator for the {@link SearchServer}.
+ * <p>
+ * Each client thread sends its next request as soon as the previous one completed, cycling through a fixed list
+ * of request paths, for the configured duration. The report gives the throughput and the latency percentiles.
+ */
+public class LoadGenerator {
+
+    /**
+     * Result of a load test.
+     */
+    public static class Report {
+
+        private final long requests;
+        private final long errors;
+        private final double seconds;
+        private final long[] latenciesNanos;
+
+        Report(long requests, long errors, double seconds, long[] latenciesNanos) {
+            this.requests = requests;
+            this.errors = errors;
+            this.seconds = seconds;
+            this.latenciesNanos = latenciesNanos;
+            Arrays.sort(this.latenciesNanos);
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public double getQps() {
+            return requests / seconds;
+        }
+
+        /**
+         * @param percentile Percentile, between 0 and 100.
+         * @return The latency percentile, in milliseconds.
+         */
+        public double getLatencyMillis(double percentile) {
+            if (latenciesNanos.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * latenciesNanos.length) - 1;
+            return latenciesNanos[Math.max(0, Math.min(index, latenciesNanos.length - 1))] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d, errors=%d, qps=%.1f, p50=%.3fms, p90=%.3fms, p99=%.3fms, max=%.3fms",
+                    requests, errors, getQps(), getLatencyMillis(50), getLatencyMillis(90), getLatencyMillis(99),
+                    getLatencyMillis(100));
+        }
+    }
+
+    private final String baseUrl;
+    private final List<String> paths;
+    private final int clients;
+
+    /**
+     * @param baseUrl Server URL, e.g. http://localhost:8080
+     * @param paths   Request paths and query strings, e.g. /search?q=fox
+     * @param clients Number of concurrent clients.
+     */
+    public LoadGenerator(String baseUrl, List<String> paths, int clients) {
+        if (paths.isEmpty() || clients <= 0) {
+            throw new IllegalArgumentException("At least one path and one client are required");
+        }
+        this.baseUrl = baseUrl;
+        this.paths = new ArrayList<>(paths);
+        this.clients = clients;
+    }
+
+    /**
+     * Build the search request path of a query.
+     *
+     * @param type  Query type: classic, span or function.
+     * @param query Query string.
+     * @return The request path.
+     */
+    public static String searchPath(String type, String query) {
+        try {
+            return String.format("/search?type=%s&q=%s", type, URLEncoder.encode(query, "UTF-8"));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Run the load test.
+     *
+     * @param durationMillis Duration of the test.
+     * @return The report.
+     * @throws InterruptedException Interrupted while waiting for the clients.
+     */
+    public Report run(final long durationMillis) throws InterruptedException {
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final List<long[]> latencies = new ArrayList<>();
+        final long start = System.nanoTime();
+        final long end = start + durationMillis * 1000000L;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            final LatencyRecorder recorder = new LatencyRecorder();
+            latencies.add(null);
+            Thread thread = new Thread(() -> {
+                try {
+                    int i = client;
+                    while (System.nanoTime() < end) {
+                        String path = paths.get(i++ % paths.size());
+                        long requestStart = System.nanoTime();
+                        if (!send(path)) {
+                            errors.incrementAndGet();
+                        }
+                        recorder.add(System.nanoTime() - requestStart);
+                        requests.incrementAndGet();
+                    }
+                } finally {
+                    // Even if the client died, its latencies are reported
+                    synchronized (latencies) {
+                        latencies.set(client, recorder.toArray());
+                    }
+                }
+            }, "load-client-" + c);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        int count = 0;
+        for (long[] clientLatencies : latencies) {
+            count += clientLatencies.length;
+        }
+        long[] all = new long[count];
+        int offset = 0;
+        for (long[] clientLatencies : latencies) {
+            System.arraycopy(clientLatencies, 0, all, offset, clientLatencies.length);
+            offset += clientLatencies.length;
+        }
+        return new Report(requests.get(), errors.get(), seconds, all);
+    }
+
+    private boolean send(String path) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                // Drain the response so that the connection can be reused
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) != -1) {
+                }
+                in.close();
+            }
+            return status == 200;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Growable array of latencies of a single client.
+     */
+    private static class LatencyRecorder {
+
+        private long[] values = new long[1024];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.util.InfoStream;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merge policy and merge scheduler of an index writer, switched between bulk loads and steady-state indexing, with
+ * merge metrics.
+ * <p>
+ * During a bulk load, the tiered merge policy lets more segments accumulate and merges more of them at once, so
+ * that fewer, larger merges compete with the concurrent searches for the disk bandwidth. The merge scheduler's
+ * thread and merge counts bound the merge concurrency, and its auto I/O throttle rate limits the merges while they
+ * keep up with the indexing. After the load, the index can be force-merged down to a few segments, and the merge
+ * policy is switched to the steady-state profile. The merge policy of an open writer is switched by installing a
+ * fresh policy in its live configuration, rather than by changing the policy the merge threads are using: the writer
+ * doesn't need to be reopened.
+ * <p>
+ * Merge metrics are reported to an {@link InfoStream}, under the {@link #INFO_STREAM_COMPONENT} component. They are
+ * not reported unless an info stream is set with {@link #setInfoStream(InfoStream)}, e.g. the writer's.
+ */
+public class MergeManager {
+
+    public static final String INFO_STREAM_COMPONENT = "MergeManager";
+
+    /**
+     * Tiered merge policy profiles.
+     */
+    public enum Profile {
+        /**
+         * Fewer, larger merges: up to 30 segments per tier, merged 30 at once, small segments counted as 16MB.
+         */
+        BULK(30, 30, 16),
+        /**
+         * The tiered merge policy's defaults: 10 segments per tier, merged 10 at once, small segments counted as 2MB.
+         */
+        STEADY_STATE(10, 10, 2);
+
+        private final double segmentsPerTier;
+        private final int maxMergeAtOnce;
+        private final double floorSegmentMB;
+
+        Profile(double segmentsPerTier, int maxMergeAtOnce, double floorSegmentMB) {
+            this.segmentsPerTier = segmentsPerTier;
+            this.maxMergeAtOnce = maxMergeAtOnce;
+            this.floorSegmentMB = floorSegmentMB;
+        }
+    }
+
+    /**
+     * Default number of steps of the switch to the steady-state profile after a bulk load without force merge.
+     */
+    public static final int DEFAULT_STEADY_STATE_STEPS = 4;
+
+    private final MeteredMergeScheduler mergeScheduler = new MeteredMergeScheduler();
+    private volatile Profile profile;
+    private int forceMergeMaxSegments;
+    private int steadyStateSteps = DEFAULT_STEADY_STATE_STEPS;
+    private volatile InfoStream infoStream = InfoStream.NO_OUTPUT;
+
+    private final AtomicLong mergeCount = new AtomicLong();
+    private final AtomicLong mergedSegmentCount = new AtomicLong();
+    private final AtomicLong mergedBytes = new AtomicLong();
+    private final AtomicLong mergeNanos = new AtomicLong();
+
+    /**
+     * @param profile The initial merge policy profile.
+     */
+    public MergeManager(Profile profile) {
+        setProfile(profile);
+    }
+
+    /**
+     * Bound the merge concurrency.
+     *
+     * @param maxMergeCount  Maximum number of pending merges before the indexing threads are stalled.
+     * @param maxThreadCount Maximum number of merges running at once. It must be &lt;= maxMergeCount.
+     * @return This manager.
+     */
+    public MergeManager setMaxMergesAndThreads(int maxMergeCount, int maxThreadCount) {
+        mergeScheduler.setMaxMergesAndThreads(maxMergeCount, maxThreadCount);
+        return this;
+    }
+
+    /**
+     * @param autoIOThrottle Whether the merges are rate limited while they keep up with the indexing.
+     * @return This manager.
+     */
+    public MergeManager setAutoIOThrottle(boolean autoIOThrottle) {
+        if (autoIOThrottle) {
+            mergeScheduler.enableAutoIOThrottle();
+        } else {
+            mergeScheduler.disableAutoIOThrottle();
+        }
+        return this;
+    }
+
+    /**
+     * @param maxSegments Number of segments {@link #endBulk(IndexWriter)} force-merges the index down to, or 0 not
+     *                    to force-merge.
+     * @return This manager.
+     */
+    public MergeManager setForceMergeAfterBulk(int maxSegments) {
+        if (maxSegments < 0) {
+            throw new IllegalArgumentException(String.format("maxSegments must be >= 0, got %d", maxSegments));
+        }
+        this.forceMergeMaxSegments = maxSegments;
+        return this;
+    }
+
+    /**
+     * @param steps Number of steps of the switch to the steady-state profile in {@link #endBulk(IndexWriter)}, when
+     *              the index isn't force-merged.
+     * @return This manager.
+     */
+    public MergeManager setSteadyStateSteps(int steps) {
+        if (steps <= 0) {
+            throw new IllegalArgumentException(String.format("steps must be > 0, got %d", steps));
+        }
+        this.steadyStateSteps = steps;
+        return this;
+    }
+
+    /**
+     * @param infoStream Where the merge metrics are reported, e.g. the writer's
+     *                   {@link org.apache.lucene.index.LiveIndexWriterConfig#getInfoStream()}. Defaults to
+     *                   {@link InfoStream#NO_OUTPUT}.
+     * @return This manager.
+     */
+    public MergeManager setInfoStream(InfoStream infoStream) {
+        this.infoStream = infoStream;
+        return this;
+    }
+
+    /**
+     * Set the profile of the merge policy {@link #install(IndexWriterConfig)} uses. The writers already open keep
+     * their policy: see {@link #setProfile(IndexWriter, Profile)}.
+     *
+     * @param profile The profile.
+     */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Switch the merge policy of an open writer to a profile.
+     *
+     * @param writer  The index writer.
+     * @param profile The profile.
+     */
+    public void setProfile(IndexWriter writer, Profile profile) {
+        writer.getConfig().setMergePolicy(newMergePolicy(profile));
+        this.profile = profile;
+    }
+
+    public Profile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Use this manager's merge policy and merge scheduler.
+     *
+     * @param config Index writer configuration.
+     * @return The configuration.
+     */
+    public IndexWriterConfig install(IndexWriterConfig config) {
+        config.setMergePolicy(newMergePolicy(profile));
+        config.setMergeScheduler(mergeScheduler);
+        return config;
+    }
+
+    /**
+     * Switch to the bulk profile before a bulk load, before the writer is installed and opened.
+     */
+    public void beginBulk() {
+        setProfile(Profile.BULK);
+    }
+
+    /**
+     * End a bulk load: force-merge the index if configured, switch to the steady-state profile and commit.
+     * <p>
+     * Without a force merge, switching straight to the steady-state profile would make the writer merge down the
+     * larger tiers of the bulk load all at once. The switch is made in steps instead
+     * ({@link #setSteadyStateSteps(int)}): each step installs a policy between the bulk and the steady-state profiles
+     * and waits for its merges, so that this method returns once the index is merged to the steady-state profile.
+     *
+     * @param writer The index writer of the bulk load.
+     * @throws IOException An exception occurred.
+     */
+    public void endBulk(IndexWriter writer) throws IOException {
+        long start = System.nanoTime();
+        if (forceMergeMaxSegments > 0) {
+            writer.forceMerge(forceMergeMaxSegments);
+            // The merge threads record their metrics after the merges are committed
+            mergeScheduler.sync();
+            message(String.format("force merge to %d segments: %.1f ms",
+                    forceMergeMaxSegments, (System.nanoTime() - start) / 1e6));
+            setProfile(writer, Profile.STEADY_STATE);
+        } else {
+            Profile from = profile;
+            Profile to = Profile.STEADY_STATE;
+            for (int step = 1; step <= steadyStateSteps; step++) {
+                if (step == steadyStateSteps) {
+                    setProfile(writer, to);
+                } else {
+                    writer.getConfig().setMergePolicy(newMergePolicy(from, to, (double) step / steadyStateSteps));
+                }
+                writer.maybeMerge();
+                mergeScheduler.sync();
+            }
+            message(String.format("switch to %s in %d steps: %.1f ms",
+                    to, steadyStateSteps, (System.nanoTime() - start) / 1e6));
+        }
+        writer.commit();
+        message(String.format("bulk load done: %d segments, %s", getSegmentCount(writer), this));
+    }
+
+    /**
+     * @param writer An index writer.
+     * @return Number of segments of the writer's last commit.
+     * @throws IOException An exception occurred.
+     */
+    public static int getSegmentCount(IndexWriter writer) throws IOException {
+        return SegmentInfos.readLatestCommit(writer.getDirectory()).size();
+    }
+
+    /**
+     * @return Number of merges done.
+     */
+    public long getMergeCount() {
+        return mergeCount.get();
+    }
+
+    /**
+     * @return Number of segments merged away.
+     */
+    public long getMergedSegmentCount() {
+        return mergedSegmentCount.get();
+    }
+
+    /**
+     * @return Size of the segments merged away.
+     */
+    public long getMergedBytes() {
+        return mergedBytes.get();
+    }
+
+    /**
+     * @return Time spent merging, summed over the merge threads.
+     */
+    public long getMergeMillis() {
+        return mergeNanos.get() / 1000000;
+    }
+
+    private static TieredMergePolicy newMergePolicy(Profile profile) {
+        return newMergePolicy(profile, profile, 0);
+    }
+
+    /**
+     * @return A merge policy between two profiles, at the given fraction of the way from the first one.
+     */
+    private static TieredMergePolicy newMergePolicy(Profile from, Profile to, double fraction) {
+        return new TieredMergePolicy()
+                .setSegmentsPerTier(from.segmentsPerTier + (to.segmentsPerTier - from.segmentsPerTier) * fraction)
+                .setMaxMergeAtOnce((int) Math.round(from.maxMergeAtOnce
+                        + (to.maxMergeAtOnce - from.maxMergeAtOnce) * fraction))
+                .setFloorSegmentMB(from.floorSegmentMB + (to.floorSegmentMB - from.floorSegmentMB) * fraction);
+    }
+
+    private void message(String message) {
+        InfoStream infoStream = this.infoStream;
+        if (infoStream.isEnabled(INFO_STREAM_COMPONENT)) {
+            infoStream.message(INFO_STREAM_COMPONENT, message);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MergeManager(profile=%s, merges=%d, segments=%d, bytes=%d, time=%d ms)",
+                profile, getMergeCount(), getMergedSegmentCount(), getMergedBytes(), getMergeMillis());
+    }
+
+    /**
+     * Concurrent merge scheduler recording the metrics of every merge.
+     */
+    private class MeteredMergeScheduler extends ConcurrentMergeScheduler {
+
+        @Override
+        protected void doMerge(IndexWriter writer, MergePolicy.OneMerge merge) throws IOException {
+            long start = System.nanoTime();
+            super.doMerge(writer, merge);
+            long nanos = System.nanoTime() - start;
+            mergeCount.incrementAndGet();
+            mergedSegmentCount.addAndGet(merge.segments.size());
+            mergedBytes.addAndGet(merge.totalBytesSize());
+            mergeNanos.addAndGet(nanos);
+            // Not MergeScheduler.message(), which reports to the writer's info stream
+            MergeManager.this.message(String.format("merged %d segments, %d docs, %d bytes in %.1f ms",
+                    merge.segments.size(), merge.totalNumDocs(), merge.totalBytesSize(), nanos / 1e6));
+        }
+    }
+}
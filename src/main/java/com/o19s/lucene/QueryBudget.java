@@ -0,0 +1,204 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.spans.SpanQuery;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time and cost budget of a single search.
+ * <p>
+ * {@link #wrap(Query)} wraps the leaves of a query tree so that every document and position they visit is charged
+ * to the budget. Span leaves are charged for each position, inside the span iteration, so that deeply nested span
+ * queries are interrupted too. When the wall-clock timeout elapses or the maximum number of visits is reached,
+ * the iteration is aborted with a {@link BudgetExceededException}, and {@link #search(IndexSearcher, Query, int)}
+ * returns the hits collected so far, flagged as partial.
+ * <p>
+ * A budget is consumed by a single search: create a new one for each search.
+ */
+public class QueryBudget {
+
+    /**
+     * The clock is read every CLOCK_CHECK_INTERVAL + 1 visits.
+     */
+    private static final long CLOCK_CHECK_INTERVAL = 0xF;
+
+    /**
+     * Thrown when a budget is exhausted, to abort the search.
+     */
+    public static class BudgetExceededException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private BudgetExceededException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final long timeoutNanos;
+    private final long deadlineNanos;
+    private final long maxVisits;
+    private final AtomicLong visits = new AtomicLong();
+    private volatile boolean exhausted;
+
+    private final QueryTreeRewriter rewriter = new QueryTreeRewriter() {
+        @Override
+        protected Query rewriteLeaf(Query query) {
+            return query instanceof BudgetedQuery ? query : new BudgetedQuery(query, QueryBudget.this);
+        }
+
+        @Override
+        protected SpanQuery rewriteSpanLeaf(SpanQuery query) {
+            return query instanceof BudgetedSpanQuery ? query : new BudgetedSpanQuery(query, QueryBudget.this);
+        }
+    };
+
+    /**
+     * @param timeoutMillis Wall-clock time allowed to the search, starting now.
+     * @param maxVisits     Maximum number of documents and positions visited by the query leaves.
+     */
+    public QueryBudget(long timeoutMillis, long maxVisits) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.deadlineNanos = System.nanoTime() + timeoutNanos;
+        this.maxVisits = maxVisits;
+    }
+
+    /**
+     * Charge one document or position visit to the budget.
+     *
+     * @throws BudgetExceededException The budget is exhausted.
+     */
+    void visit() {
+        long count = visits.incrementAndGet();
+        if (exhausted) {
+            throw new BudgetExceededException("Query budget exhausted");
+        }
+        if (count > maxVisits) {
+            exhausted = true;
+            throw new BudgetExceededException(String.format("Query visited more than %d postings", maxVisits));
+        }
+        if ((count & CLOCK_CHECK_INTERVAL) == 0 && System.nanoTime() - deadlineNanos > 0) {
+            exhausted = true;
+            throw new BudgetExceededException(String.format("Query ran for more than %d ms",
+                    TimeUnit.NANOSECONDS.toMillis(timeoutNanos)));
+        }
+    }
+
+    /**
+     * @return Number of documents and positions visited so far.
+     */
+    public long getVisits() {
+        return visits.get();
+    }
+
+    /**
+     * @return True once the search was aborted.
+     */
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    /**
+     * Charge the leaves of a query to this budget.
+     *
+     * @param query A query.
+     * @return The budgeted query.
+     */
+    public Query wrap(Query query) {
+        return rewriter.apply(query);
+    }
+
+    /**
+     * Charge the leaves of a span query to this budget.
+     *
+     * @param query A span query.
+     * @return The budgeted span query.
+     */
+    public SpanQuery wrap(SpanQuery query) {
+        return rewriter.apply(query);
+    }
+
+    /**
+     * Search the top hits of a query within this budget.
+     *
+     * @param searcher An index searcher.
+     * @param query    The query.
+     * @param n        Number of top hits to return.
+     * @return The top hits, flagged as partial if the budget ran out.
+     * @throws IOException An exception occurred.
+     */
+    public BudgetedTopDocs search(IndexSearcher searcher, Query query, int n) throws IOException {
+        // Same hit count capping as IndexSearcher.searchAfter()
+        int limit = Math.max(1, searcher.getIndexReader().maxDoc());
+        TopScoreDocCollector collector = TopScoreDocCollector.create(Math.min(n, limit));
+        boolean partial = false;
+        try {
+            searcher.search(wrap(query), collector);
+        } catch (BudgetExceededException e) {
+            partial = true;
+        }
+        return new BudgetedTopDocs(collector.topDocs(), partial);
+    }
+
+    /**
+     * Document iterator charging each visited document to a budget.
+     */
+    static class BudgetedDocIdSetIterator extends DocIdSetIterator {
+
+        private final DocIdSetIterator in;
+        private final QueryBudget budget;
+
+        BudgetedDocIdSetIterator(DocIdSetIterator in, QueryBudget budget) {
+            this.in = in;
+            this.budget = budget;
+        }
+
+        @Override
+        public int docID() {
+            return in.docID();
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            budget.visit();
+            return in.nextDoc();
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            budget.visit();
+            return in.advance(target);
+        }
+
+        @Override
+        public long cost() {
+            return in.cost();
+        }
+    }
+
+    /**
+     * Top hits of a budgeted search.
+     */
+    public static class BudgetedTopDocs extends TopDocs {
+
+        private final boolean partial;
+
+        BudgetedTopDocs(TopDocs topDocs, boolean partial) {
+            super(topDocs.totalHits, topDocs.scoreDocs, topDocs.getMaxScore());
+            this.partial = partial;
+        }
+
+        /**
+         * @return True if the search was aborted because the budget ran out: the hits are incomplete.
+         */
+        public boolean isPartial() {
+            return partial;
+        }
+    }
+}
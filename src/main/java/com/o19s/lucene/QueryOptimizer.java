@@ -0,0 +1,345 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.function.FunctionRangeQuery;
+import org.apache.lucene.queries.function.valuesource.TermFreqValueSource;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.spans.*;
+import org.apache.lucene.util.BytesRef;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optimize boolean and span query trees before searching them:
+ * <ul>
+ * <li>The duplicated clauses of span or queries are removed, and the ordered span near clauses of a span or query
+ * that only differ by their last sub-span are factored when these sub-spans have the same width:
+ * or(near(a, b), near(a, c)) becomes near(a, or(b, c)), so that a is only evaluated once.</li>
+ * <li>The clauses of unordered span near and span or queries are sorted by their estimated cost, the document
+ * frequency of their terms. Boolean clauses are left in order: the boolean conjunction already leads with its
+ * cheapest clause.</li>
+ * <li>Span near queries of a single clause are replaced with the clause, and a span term query outside of a span
+ * tree with a term query, which doesn't read positions.</li>
+ * <li>A required function range query on the frequency of a term that requires the term to be present, e.g.
+ * termfreq(f, fox) &gt;= 2, gets a term filter so that it doesn't scan all the documents of the index. The term
+ * frequency must come from {@link #termFreq(String, String)}, which exposes its term.</li>
+ * </ul>
+ * The optimized query matches the same documents. Scores are the same up to floating-point rounding, as reordered
+ * clauses are summed in a different order, except when span or clauses are removed or factored: the span
+ * frequencies, hence the scores, of the documents matching several of them may differ.
+ */
+public class QueryOptimizer extends QueryTreeRewriter {
+
+    private final IndexReader reader;
+    private final TermContextCache termContextCache;
+
+    /**
+     * @param reader The index reader the optimized queries are searched with, for the document frequencies.
+     */
+    public QueryOptimizer(IndexReader reader) {
+        this.reader = reader;
+        this.termContextCache = TermContextCache.forReader(reader);
+    }
+
+    @Override
+    public Query apply(Query query) {
+        if (query instanceof SpanQuery) {
+            SpanQuery optimized = apply((SpanQuery) query);
+            if (optimized instanceof SpanTermQuery) {
+                return new TermQuery(((SpanTermQuery) optimized).getTerm());
+            }
+            return optimized;
+        }
+        if (query instanceof FunctionRangeQuery) {
+            Term term = requiredTerm((FunctionRangeQuery) query);
+            if (term != null) {
+                return new BooleanQuery.Builder()
+                        .add(new TermQuery(term), BooleanClause.Occur.FILTER)
+                        .add(query, BooleanClause.Occur.MUST)
+                        .build();
+            }
+            return query;
+        }
+        if (query instanceof BooleanQuery) {
+            return optimize((BooleanQuery) query);
+        }
+        return super.apply(query);
+    }
+
+    @Override
+    public SpanQuery apply(SpanQuery query) {
+        SpanQuery rebuilt = super.apply(query);
+        if (rebuilt instanceof SpanNearQuery) {
+            SpanNearQuery nearQuery = (SpanNearQuery) rebuilt;
+            SpanQuery[] clauses = nearQuery.getClauses();
+            if (clauses.length == 1) {
+                return clauses[0];
+            }
+            if (!nearQuery.isInOrder()) {
+                SpanQuery[] sorted = clauses.clone();
+                Arrays.sort(sorted, Comparator.comparingLong(this::cost));
+                return new SpanNearQuery(sorted, nearQuery.getSlop(), false);
+            }
+            return nearQuery;
+        }
+        if (rebuilt instanceof SpanOrQuery) {
+            List<SpanQuery> clauses = factor(new ArrayList<>(
+                    new LinkedHashSet<>(Arrays.asList(((SpanOrQuery) rebuilt).getClauses()))));
+            if (clauses.size() == 1) {
+                return clauses.get(0);
+            }
+            clauses.sort(Comparator.comparingLong(this::cost));
+            return new SpanOrQuery(clauses.toArray(new SpanQuery[clauses.size()]));
+        }
+        return rebuilt;
+    }
+
+    /**
+     * Optimize the clauses of a boolean query and add the term filters required by its function range clauses.
+     */
+    private Query optimize(BooleanQuery query) {
+        List<BooleanClause> clauses = new ArrayList<>();
+        Set<Term> requiredTerms = new HashSet<>();
+        List<FunctionRangeQuery> functionRanges = new ArrayList<>();
+        for (BooleanClause clause : query.clauses()) {
+            Query optimized;
+            if (clause.isRequired() && clause.getQuery() instanceof FunctionRangeQuery) {
+                // The term filter is added to this query rather than nested
+                optimized = clause.getQuery();
+                functionRanges.add((FunctionRangeQuery) optimized);
+            } else {
+                optimized = apply(clause.getQuery());
+            }
+            if (clause.isRequired() && optimized instanceof TermQuery) {
+                requiredTerms.add(((TermQuery) optimized).getTerm());
+            }
+            clauses.add(new BooleanClause(optimized, clause.getOccur()));
+        }
+        for (FunctionRangeQuery functionRange : functionRanges) {
+            Term term = requiredTerm(functionRange);
+            if (term != null && requiredTerms.add(term)) {
+                clauses.add(new BooleanClause(new TermQuery(term), BooleanClause.Occur.FILTER));
+            }
+        }
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        builder.setMinimumNumberShouldMatch(query.getMinimumNumberShouldMatch());
+        for (BooleanClause clause : clauses) {
+            builder.add(clause);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Factor the ordered span near clauses of a span or query that are the same but for their last sub-span, when
+     * the last sub-spans all have the same fixed width.
+     * <p>
+     * An ordered span near query only checks where its last sub-span starts, so that near(a, or(b, c)) matches
+     * where near(a, b) or near(a, c) does. Factoring any other sub-span, or sub-spans of different widths, changes
+     * the positions the following sub-spans are matched from, and the documents that match.
+     *
+     * @param clauses The clauses of the span or query, without duplicates.
+     * @return The factored clauses.
+     */
+    private List<SpanQuery> factor(List<SpanQuery> clauses) {
+        Map<List<Object>, List<SpanNearQuery>> groups = new LinkedHashMap<>();
+        for (SpanQuery clause : clauses) {
+            if (isFactorable(clause)) {
+                groups.computeIfAbsent(factorKey((SpanNearQuery) clause), key -> new ArrayList<>())
+                        .add((SpanNearQuery) clause);
+            }
+        }
+        if (groups.values().stream().allMatch(group -> group.size() == 1)) {
+            return clauses;
+        }
+
+        List<SpanQuery> factored = new ArrayList<>();
+        for (SpanQuery clause : clauses) {
+            List<SpanNearQuery> group = isFactorable(clause) ? groups.get(factorKey((SpanNearQuery) clause)) : null;
+            if (group == null || group.size() == 1) {
+                factored.add(clause);
+            } else if (group.get(0) == clause) {
+                SpanQuery[] nearClauses = group.get(0).getClauses().clone();
+                int last = nearClauses.length - 1;
+                SpanQuery[] alternatives = new SpanQuery[group.size()];
+                for (int i = 0; i < alternatives.length; i++) {
+                    alternatives[i] = group.get(i).getClauses()[last];
+                }
+                nearClauses[last] = apply(new SpanOrQuery(alternatives));
+                factored.add(new SpanNearQuery(nearClauses, group.get(0).getSlop(), true));
+            }
+        }
+        return factored;
+    }
+
+    private static boolean isFactorable(SpanQuery query) {
+        if (!(query instanceof SpanNearQuery) || !((SpanNearQuery) query).isInOrder()) {
+            return false;
+        }
+        SpanQuery[] clauses = ((SpanNearQuery) query).getClauses();
+        return width(clauses[clauses.length - 1]) > 0;
+    }
+
+    /**
+     * @return What identifies the ordered span near queries that can be factored together: the same slop, sub-spans
+     * but for the last one, and width of the last sub-span.
+     */
+    private static List<Object> factorKey(SpanNearQuery query) {
+        SpanQuery[] clauses = query.getClauses();
+        List<Object> key = new ArrayList<>(Arrays.asList(clauses).subList(0, clauses.length - 1));
+        key.add(query.getSlop());
+        key.add(width(clauses[clauses.length - 1]));
+        return key;
+    }
+
+    /**
+     * @return The number of positions every span of a span query covers, or -1 if it varies or is unknown.
+     */
+    private static int width(SpanQuery query) {
+        if (query instanceof SpanTermQuery) {
+            return 1;
+        }
+        if (query instanceof SpanBoostQuery) {
+            return width(((SpanBoostQuery) query).getQuery());
+        }
+        if (query instanceof SpanNearQuery) {
+            SpanNearQuery nearQuery = (SpanNearQuery) query;
+            if (!nearQuery.isInOrder() || nearQuery.getSlop() != 0) {
+                return -1;
+            }
+            int width = 0;
+            for (SpanQuery clause : nearQuery.getClauses()) {
+                int clauseWidth = width(clause);
+                if (clauseWidth < 0) {
+                    return -1;
+                }
+                width += clauseWidth;
+            }
+            return width;
+        }
+        if (query instanceof SpanOrQuery) {
+            int width = -1;
+            for (SpanQuery clause : ((SpanOrQuery) query).getClauses()) {
+                int clauseWidth = width(clause);
+                if (clauseWidth < 0 || (width >= 0 && clauseWidth != width)) {
+                    return -1;
+                }
+                width = clauseWidth;
+            }
+            return width;
+        }
+        return -1;
+    }
+
+    /**
+     * Estimate the cost of a query: the number of documents its most selective required term matches, or the
+     * total of its optional terms. Unknown queries cost all the documents of the index.
+     *
+     * @param query A query.
+     * @return The estimated number of documents to visit.
+     */
+    public long cost(Query query) {
+        if (query instanceof TermQuery) {
+            return termContextCache.get(((TermQuery) query).getTerm()).docFreq();
+        }
+        if (query instanceof SpanTermQuery) {
+            return termContextCache.get(((SpanTermQuery) query).getTerm()).docFreq();
+        }
+        if (query instanceof SpanNearQuery) {
+            long cost = reader.maxDoc();
+            for (SpanQuery clause : ((SpanNearQuery) query).getClauses()) {
+                cost = Math.min(cost, cost(clause));
+            }
+            return cost;
+        }
+        if (query instanceof SpanOrQuery) {
+            long cost = 0;
+            for (SpanQuery clause : ((SpanOrQuery) query).getClauses()) {
+                cost += cost(clause);
+            }
+            return Math.min(cost, reader.maxDoc());
+        }
+        if (query instanceof SpanNotQuery) {
+            return cost(((SpanNotQuery) query).getInclude());
+        }
+        if (query instanceof SpanFirstQuery) {
+            return cost(((SpanFirstQuery) query).getMatch());
+        }
+        if (query instanceof SpanBoostQuery) {
+            return cost(((SpanBoostQuery) query).getQuery());
+        }
+        if (query instanceof BoostQuery) {
+            return cost(((BoostQuery) query).getQuery());
+        }
+        if (query instanceof ConstantScoreQuery) {
+            return cost(((ConstantScoreQuery) query).getQuery());
+        }
+        if (query instanceof BooleanQuery) {
+            long required = reader.maxDoc();
+            long optional = 0;
+            boolean hasRequired = false;
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                if (clause.isRequired()) {
+                    hasRequired = true;
+                    required = Math.min(required, cost(clause.getQuery()));
+                } else if (clause.getOccur() == BooleanClause.Occur.SHOULD) {
+                    optional += cost(clause.getQuery());
+                }
+            }
+            return hasRequired ? required : Math.min(optional, reader.maxDoc());
+        }
+        return reader.maxDoc();
+    }
+
+    /**
+     * Instantiate the frequency of a term in the documents, as a value source whose function range queries the
+     * optimizer can give a term filter.
+     *
+     * @param field The field.
+     * @param term  The term, as indexed.
+     * @return The value source.
+     */
+    public static TermFreqValueSource termFreq(String field, String term) {
+        return new TermFreq(new Term(field, term));
+    }
+
+    /**
+     * @return The term a function range query on a term frequency requires to be present, or null.
+     */
+    static Term requiredTerm(FunctionRangeQuery query) {
+        if (!(query.getValueSource() instanceof TermFreq) || query.getLowerVal() == null) {
+            return null;
+        }
+        double lower = Double.parseDouble(query.getLowerVal());
+        if (lower < 0 || (lower == 0 && query.isIncludeLower())) {
+            return null;
+        }
+        return ((TermFreq) query.getValueSource()).term;
+    }
+
+    /**
+     * Term frequency value source exposing its term, which {@link TermFreqValueSource} keeps to itself.
+     */
+    private static class TermFreq extends TermFreqValueSource {
+
+        private final Term term;
+
+        TermFreq(Term term) {
+            super(term.field(), term.text(), term.field(), BytesRef.deepCopyOf(term.bytes()));
+            this.term = term;
+        }
+    }
+}
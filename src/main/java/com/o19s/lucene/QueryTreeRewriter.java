@@ -0,0 +1,99 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.*;
+
+/**
+ * Rebuild boolean and span query trees, replacing their leaves.
+ * <p>
+ * Boolean, boost, span near/or/not/first and span boost queries are walked; any other query is a leaf and is
+ * passed to {@link #rewriteLeaf(Query)} or {@link #rewriteSpanLeaf(SpanQuery)}.
+ */
+public abstract class QueryTreeRewriter {
+
+    /**
+     * @param query A leaf query, e.g. a term query.
+     * @return The query replacing the leaf.
+     */
+    protected Query rewriteLeaf(Query query) {
+        return query;
+    }
+
+    /**
+     * @param query A leaf span query, e.g. a span term query.
+     * @return The span query replacing the leaf.
+     */
+    protected SpanQuery rewriteSpanLeaf(SpanQuery query) {
+        return query;
+    }
+
+    /**
+     * Rebuild a query tree.
+     *
+     * @param query A query.
+     * @return The rebuilt query.
+     */
+    public Query apply(Query query) {
+        if (query instanceof SpanQuery) {
+            return apply((SpanQuery) query);
+        }
+        if (query instanceof BoostQuery) {
+            BoostQuery boostQuery = (BoostQuery) query;
+            return new BoostQuery(apply(boostQuery.getQuery()), boostQuery.getBoost());
+        }
+        if (query instanceof BooleanQuery) {
+            BooleanQuery booleanQuery = (BooleanQuery) query;
+            BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            builder.setMinimumNumberShouldMatch(booleanQuery.getMinimumNumberShouldMatch());
+            for (BooleanClause clause : booleanQuery.clauses()) {
+                builder.add(apply(clause.getQuery()), clause.getOccur());
+            }
+            return builder.build();
+        }
+        return rewriteLeaf(query);
+    }
+
+    /**
+     * Rebuild a span query tree.
+     *
+     * @param query A span query.
+     * @return The rebuilt span query.
+     */
+    public SpanQuery apply(SpanQuery query) {
+        if (query instanceof SpanNearQuery) {
+            SpanNearQuery nearQuery = (SpanNearQuery) query;
+            return new SpanNearQuery(apply(nearQuery.getClauses()), nearQuery.getSlop(), nearQuery.isInOrder());
+        }
+        if (query instanceof SpanOrQuery) {
+            return new SpanOrQuery(apply(((SpanOrQuery) query).getClauses()));
+        }
+        if (query instanceof SpanFirstQuery) {
+            SpanFirstQuery firstQuery = (SpanFirstQuery) query;
+            return new SpanFirstQuery(apply(firstQuery.getMatch()), firstQuery.getEnd());
+        }
+        if (query instanceof SpanNotQuery) {
+            SpanNotQuery notQuery = (SpanNotQuery) query;
+            // The pre/post distances are not exposed: only rebuild the default (0, 0) span not queries
+            if (notQuery.equals(new SpanNotQuery(notQuery.getInclude(), notQuery.getExclude()))) {
+                return new SpanNotQuery(apply(notQuery.getInclude()), apply(notQuery.getExclude()));
+            }
+            return rewriteSpanLeaf(query);
+        }
+        if (query instanceof SpanBoostQuery) {
+            SpanBoostQuery boostQuery = (SpanBoostQuery) query;
+            return new SpanBoostQuery(apply(boostQuery.getQuery()), boostQuery.getBoost());
+        }
+        return rewriteSpanLeaf(query);
+    }
+
+    protected SpanQuery[] apply(SpanQuery[] clauses) {
+        SpanQuery[] applied = new SpanQuery[clauses.length];
+        for (int i = 0; i < clauses.length; i++) {
+            applied[i] = apply(clauses[i]);
+        }
+        return applied;
+    }
+}
@@ -0,0 +1,351 @@
+package com.o19s.lucene;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.function.FunctionRangeQuery;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
+import org.apache.lucene.store.Directory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Small embeddable HTTP search server, built on the JDK's HTTP server.
+ * <p>
+ * Endpoints:
+ * <ul>
+ * <li>POST /index: index the request body, one "id&lt;TAB&gt;text" document per line. Existing ids are
+ * replaced.</li>
+ * <li>GET /search?q=...&amp;type=classic|span|function&amp;n=10&amp;timeout=1000: search the top hits. "classic"
+ * parses q with the classic query parser; "span" matches the terms of q in order, within "slop" positions;
+ * "function" matches the documents where the term q occurs at least "min" times. The terms of the span and
+ * function queries are analyzed with the field's analyzer.</li>
+ * <li>GET /highlight?q=...&amp;n=10&amp;timeout=1000: search q with the classic query parser and highlight the top
+ * hits, with the offsets indexed in the postings of the text field.</li>
+ * </ul>
+ * Searches are optimized by a {@link QueryOptimizer} and run within a {@link QueryBudget}; the responses are JSON.
+ */
+public class SearchServer implements AutoCloseable {
+
+    private static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+    private static final long MAX_VISITS = 10000000;
+
+    private final String fieldname;
+    private final Analyzer analyzer;
+    private final IncrementalIndexer indexer;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * @param directory Index directory.
+     * @param analyzer  Analyzer of the text field.
+     * @param fieldname Text field name.
+     * @param port      HTTP port, or 0 for any free port.
+     * @param threads   Maximum number of concurrent requests, when virtual threads are not available.
+     * @throws IOException An exception occurred.
+     */
+    public SearchServer(Directory directory, Analyzer analyzer, String fieldname, int port, int threads)
+            throws IOException {
+        this.fieldname = fieldname;
+        this.analyzer = analyzer;
+        // Highlighted from the offsets of the postings: no term vectors to index
+        this.indexer = new IncrementalIndexer(directory, new IndexWriterConfig(analyzer),
+                FieldProfile.postingsHighlightedText(fieldname), false, 1000, 10000, 60000, new SearcherFactory());
+        this.executor = newExecutor(threads);
+
+        // Small JSON responses otherwise wait for delayed TCP acknowledgments (~40ms per request). The JDK's HTTP
+        // server reads this JVM-wide property once, when it's first used: an explicit setting is kept.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        server.createContext("/index", new Handler() {
+            @Override
+            String handle(HttpExchange exchange, Map<String, String> params) throws Exception {
+                return index(exchange);
+            }
+        });
+        server.createContext("/search", new Handler() {
+            @Override
+            String handle(HttpExchange exchange, Map<String, String> params) throws Exception {
+                return search(params);
+            }
+        });
+        server.createContext("/highlight", new Handler() {
+            @Override
+            String handle(HttpExchange exchange, Map<String, String> params) throws Exception {
+                return highlight(params);
+            }
+        });
+    }
+
+    /**
+     * Use a virtual thread per request when the JVM supports them (Java 21+), a bounded pool otherwise.
+     */
+    private static ExecutorService newExecutor(int threads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * @return The port the server listens to.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.stop(0);
+        executor.shutdown();
+        indexer.close();
+    }
+
+    private String index(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            throw new IllegalArgumentException("POST required");
+        }
+        int count = 0;
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+        // The indexer is not thread-safe
+        synchronized (indexer) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab <= 0) {
+                    continue;
+                }
+                indexer.index(IncrementalIndexer.Event.update(line.substring(0, tab), line.substring(tab + 1)));
+                count++;
+            }
+            indexer.flush();
+        }
+        return String.format("{\"indexed\":%d}", count);
+    }
+
+    private Query parse(Map<String, String> params) throws ParseException, IOException {
+        String q = required(params, "q");
+        String type = params.containsKey("type") ? params.get("type") : "classic";
+        switch (type) {
+            case "classic":
+                return new QueryParser(fieldname, analyzer).parse(q);
+            case "span": {
+                List<String> terms = analyze(q);
+                if (terms.isEmpty()) {
+                    throw new IllegalArgumentException(String.format("No terms in query: %s", q));
+                }
+                SpanQuery[] clauses = new SpanQuery[terms.size()];
+                for (int i = 0; i < clauses.length; i++) {
+                    clauses[i] = new SpanTermQuery(new Term(fieldname, terms.get(i)));
+                }
+                int slop = params.containsKey("slop") ? Integer.parseInt(params.get("slop")) : 0;
+                return clauses.length == 1 ? clauses[0] : new SpanNearQuery(clauses, slop, true);
+            }
+            case "function": {
+                List<String> terms = analyze(q);
+                if (terms.size() != 1) {
+                    throw new IllegalArgumentException(String.format("A single term is required: %s", q));
+                }
+                String term = terms.get(0);
+                int min = params.containsKey("min") ? Integer.parseInt(params.get("min")) : 1;
+                // The query optimizer adds the term filter that saves scanning the entire index
+                return new FunctionRangeQuery(QueryOptimizer.termFreq(fieldname, term), min, null, true, true);
+            }
+            default:
+                throw new IllegalArgumentException(String.format("Unknown query type: %s", type));
+        }
+    }
+
+    /**
+     * Analyze query text with the field's analyzer, as the indexed text was.
+     */
+    private List<String> analyze(String text) throws IOException {
+        List<String> terms = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream(fieldname, text)) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                terms.add(term.toString());
+            }
+            stream.end();
+        }
+        return terms;
+    }
+
+    private String search(Map<String, String> params) throws Exception {
+        Query query = parse(params);
+        int n = params.containsKey("n") ? Integer.parseInt(params.get("n")) : 10;
+        long timeout = params.containsKey("timeout") ? Long.parseLong(params.get("timeout")) : DEFAULT_TIMEOUT_MILLIS;
+
+        IndexSearcher searcher = indexer.getSearcherManager().acquire();
+        try {
+            query = new QueryOptimizer(searcher.getIndexReader()).apply(query);
+            QueryBudget.BudgetedTopDocs topDocs = new QueryBudget(timeout, MAX_VISITS).search(searcher, query, n);
+            StringBuilder json = new StringBuilder();
+            json.append(String.format("{\"totalHits\":%d,\"partial\":%s,\"hits\":[",
+                    topDocs.totalHits, topDocs.isPartial()));
+            for (int i = 0; i < topDocs.scoreDocs.length; i++) {
+                ScoreDoc scoreDoc = topDocs.scoreDocs[i];
+                Document doc = searcher.doc(scoreDoc.doc);
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append(String.format("{\"id\":%s,\"score\":%s}",
+                        quote(doc.get(IncrementalIndexer.ID_FIELD)), scoreDoc.score));
+            }
+            return json.append("]}").toString();
+        } finally {
+            indexer.getSearcherManager().release(searcher);
+        }
+    }
+
+    private String highlight(Map<String, String> params) throws Exception {
+        Query query = new QueryParser(fieldname, analyzer).parse(required(params, "q"));
+        int n = params.containsKey("n") ? Integer.parseInt(params.get("n")) : 10;
+        long timeout = params.containsKey("timeout") ? Long.parseLong(params.get("timeout")) : DEFAULT_TIMEOUT_MILLIS;
+
+        IndexSearcher searcher = indexer.getSearcherManager().acquire();
+        try {
+            QueryBudget.BudgetedTopDocs topDocs = new QueryBudget(timeout, MAX_VISITS).search(searcher, query, n);
+            UnifiedHighlighter highlighter = HighlighterFactory.newPostingsHighlighter(searcher, analyzer);
+            String[] fragments = highlighter.highlight(fieldname, query, topDocs);
+
+            StringBuilder json = new StringBuilder();
+            json.append(String.format("{\"totalHits\":%d,\"partial\":%s,\"hits\":[",
+                    topDocs.totalHits, topDocs.isPartial()));
+            for (int i = 0; i < topDocs.scoreDocs.length; i++) {
+                Document doc = searcher.doc(topDocs.scoreDocs[i].doc);
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append(String.format("{\"id\":%s,\"snippet\":%s}",
+                        quote(doc.get(IncrementalIndexer.ID_FIELD)), quote(fragments[i])));
+            }
+            return json.append("]}").toString();
+        } finally {
+            indexer.getSearcherManager().release(searcher);
+        }
+    }
+
+    private static String required(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException(String.format("Missing parameter: %s", name));
+        }
+        return value;
+    }
+
+    static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    static Map<String, String> parseQueryString(String queryString) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (queryString == null) {
+            return params;
+        }
+        for (String pair : queryString.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Request handler writing a JSON response, or a JSON error.
+     */
+    private abstract static class Handler implements HttpHandler {
+
+        abstract String handle(HttpExchange exchange, Map<String, String> params) throws Exception;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int status = 200;
+            String body;
+            try {
+                body = handle(exchange, parseQueryString(exchange.getRequestURI().getRawQuery()));
+            } catch (IllegalArgumentException | ParseException e) {
+                status = 400;
+                body = String.format("{\"error\":%s}", quote(e.getMessage()));
+            } catch (Exception e) {
+                status = 500;
+                body = String.format("{\"error\":%s}", quote(String.valueOf(e)));
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Index hash-partitioned across several local shards, each with its own directory and index writer.
+ * <p>
+ * Documents are routed to a shard by the hash of their id field, and the shards are written in parallel.
+ * {@link #openSearcher()} opens a {@link ShardedSearcher} searching all the shards in parallel.
+ */
+public class ShardedIndex implements Closeable {
+
+    private final IndexProfile profile;
+    private final String idField;
+    private final List<Directory> directories;
+    private final List<IndexWriter> writers = new ArrayList<>();
+    private final ExecutorService executor;
+
+    /**
+     * @param directories One directory per shard.
+     * @param profile     Indexing profile, shared by all the shards.
+     * @param idField     Field whose value routes the documents to the shards.
+     * @param threads     Number of threads indexing and searching the shards.
+     * @throws IOException An exception occurred.
+     */
+    public ShardedIndex(List<Directory> directories, IndexProfile profile, String idField, int threads)
+            throws IOException {
+        if (directories.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.profile = profile;
+        this.idField = idField;
+        this.directories = new ArrayList<>(directories);
+        for (Directory directory : directories) {
+            writers.add(new IndexWriter(directory, profile.newIndexWriterConfig()));
+        }
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    public int getShardCount() {
+        return writers.size();
+    }
+
+    /**
+     * @param id A document id.
+     * @return The index of the document's shard.
+     */
+    public int shardOf(String id) {
+        return Math.floorMod(StringHelper.murmurhash3_x86_32(new BytesRef(id), 0), writers.size());
+    }
+
+    /**
+     * Index documents, writing the shards in parallel.
+     *
+     * @param docs Documents, as field values by field name. They all must have an id.
+     * @throws IOException An exception occurred.
+     */
+    public void index(List<Map<String, String>> docs) throws IOException {
+        final List<List<Map<String, String>>> partitions = new ArrayList<>();
+        for (int i = 0; i < writers.size(); i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (Map<String, String> doc : docs) {
+            String id = doc.get(idField);
+            if (id == null) {
+                throw new IllegalArgumentException(String.format("Document without %s: %s", idField, doc));
+            }
+            partitions.get(shardOf(id)).add(doc);
+        }
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < writers.size(); i++) {
+            final IndexWriter writer = writers.get(i);
+            final List<Map<String, String>> partition = partitions.get(i);
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    for (Map<String, String> doc : partition) {
+                        writer.addDocument(profile.newDocument(doc));
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor));
+        }
+        join(futures);
+    }
+
+    /**
+     * Commit all the shards.
+     *
+     * @throws IOException An exception occurred.
+     */
+    public void commit() throws IOException {
+        for (IndexWriter writer : writers) {
+            writer.commit();
+        }
+    }
+
+    /**
+     * Open a searcher on the last commit of every shard.
+     *
+     * @return The searcher. It must be closed.
+     * @throws IOException An exception occurred.
+     */
+    public ShardedSearcher openSearcher() throws IOException {
+        List<DirectoryReader> readers = new ArrayList<>();
+        for (Directory directory : directories) {
+            readers.add(DirectoryReader.open(directory));
+        }
+        return new ShardedSearcher(readers, executor);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            for (IndexWriter writer : writers) {
+                writer.close();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    static <T> List<T> join(List<CompletableFuture<T>> futures) throws IOException {
+        List<T> results = new ArrayList<>();
+        try {
+            for (CompletableFuture<T> future : futures) {
+                results.add(future.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+        return results;
+    }
+}
@@ -0,0 +1,158 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.TopDocs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Scatter-gather searcher over the shards of a {@link ShardedIndex}.
+ * <p>
+ * Each shard is searched in parallel by its own searcher, and the shard hits are merged with
+ * {@link TopDocs#merge(int, TopDocs[])}. The shard searchers score with the term and collection statistics of the
+ * whole index, summed over all the shards, so that the scores are the same as if all the documents were in a
+ * single index.
+ */
+public class ShardedSearcher implements Closeable {
+
+    private final List<DirectoryReader> readers;
+    private final List<ShardSearcher> searchers = new ArrayList<>();
+    private final ExecutorService executor;
+
+    ShardedSearcher(List<DirectoryReader> readers, ExecutorService executor) {
+        this.readers = readers;
+        this.executor = executor;
+        for (DirectoryReader reader : readers) {
+            searchers.add(new ShardSearcher(reader));
+        }
+    }
+
+    /**
+     * Search the top hits of all the shards.
+     *
+     * @param query The query.
+     * @param n     Number of top hits to return.
+     * @return The merged top hits. The shard of each hit is its {@link ScoreDoc#shardIndex}.
+     * @throws IOException An exception occurred.
+     */
+    public TopDocs search(final Query query, final int n) throws IOException {
+        List<CompletableFuture<TopDocs>> futures = new ArrayList<>();
+        for (final ShardSearcher searcher : searchers) {
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return searcher.search(query, n);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor));
+        }
+        List<TopDocs> shardHits = ShardedIndex.join(futures);
+        return TopDocs.merge(n, shardHits.toArray(new TopDocs[shardHits.size()]));
+    }
+
+    /**
+     * Load the stored fields of a hit.
+     *
+     * @param scoreDoc A hit returned by {@link #search(Query, int)}.
+     * @return The document.
+     * @throws IOException An exception occurred.
+     */
+    public Document doc(ScoreDoc scoreDoc) throws IOException {
+        return searchers.get(scoreDoc.shardIndex).doc(scoreDoc.doc);
+    }
+
+    /**
+     * @param shard A shard index.
+     * @return The searcher of the shard, which scores with the global statistics.
+     */
+    public IndexSearcher getShardSearcher(int shard) {
+        return searchers.get(shard);
+    }
+
+    /**
+     * Sum the term statistics of all the shards.
+     */
+    TermStatistics termStatistics(Term term) throws IOException {
+        long docFreq = 0;
+        long totalTermFreq = 0;
+        for (DirectoryReader reader : readers) {
+            TermContext context = TermContextCache.forReader(reader).get(term);
+            docFreq += context.docFreq();
+            if (totalTermFreq != -1) {
+                totalTermFreq = context.totalTermFreq() == -1 ? -1 : totalTermFreq + context.totalTermFreq();
+            }
+        }
+        return new TermStatistics(term.bytes(), docFreq, totalTermFreq);
+    }
+
+    /**
+     * Sum the collection statistics of all the shards.
+     */
+    CollectionStatistics collectionStatistics(String field) throws IOException {
+        long maxDoc = 0;
+        long docCount = 0;
+        long sumTotalTermFreq = 0;
+        long sumDocFreq = 0;
+        for (ShardSearcher searcher : searchers) {
+            CollectionStatistics shard = searcher.localCollectionStatistics(field);
+            maxDoc += shard.maxDoc();
+            docCount = sum(docCount, shard.docCount());
+            sumTotalTermFreq = sum(sumTotalTermFreq, shard.sumTotalTermFreq());
+            sumDocFreq = sum(sumDocFreq, shard.sumDocFreq());
+        }
+        return new CollectionStatistics(field, maxDoc, docCount, sumTotalTermFreq, sumDocFreq);
+    }
+
+    /**
+     * Sum two statistics, -1 meaning that a statistic is not available.
+     */
+    private static long sum(long a, long b) {
+        return a == -1 || b == -1 ? -1 : a + b;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (IndexReader reader : readers) {
+            reader.close();
+        }
+    }
+
+    /**
+     * Searcher of a single shard, scoring with the global statistics.
+     */
+    private class ShardSearcher extends IndexSearcher {
+
+        ShardSearcher(IndexReader reader) {
+            super(reader);
+        }
+
+        @Override
+        public TermStatistics termStatistics(Term term, TermContext context) throws IOException {
+            return ShardedSearcher.this.termStatistics(term);
+        }
+
+        @Override
+        public CollectionStatistics collectionStatistics(String field) throws IOException {
+            return ShardedSearcher.this.collectionStatistics(field);
+        }
+
+        CollectionStatistics localCollectionStatistics(String field) throws IOException {
+            return super.collectionStatistics(field);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Highlighter of span query hits, from the span matches of the top hits collected by a {@link SpanMatchCollector}.
+ * <p>
+ * Unlike the classic highlighter's {@link org.apache.lucene.search.highlight.QueryScorer}, which re-evaluates the
+ * span query in a memory index for every document, the span matches are only turned into fragments. Only the terms
+ * that are part of a match are highlighted: a term matching a span leaf outside of any match isn't.
+ * <p>
+ * The offsets are read from the postings when the field is indexed with offsets
+ * ({@link FieldProfile#postingsHighlightedText(String)}). Otherwise the stored text is analyzed to map the matched
+ * positions to offsets; with a {@link TokenCache}, the tokens of the hits are analyzed once and replayed when the
+ * same documents are highlighted again.
+ */
+public class SpanHighlighter {
+
+    private final Analyzer analyzer;
+    private final String preTag;
+    private final String postTag;
+    private final int fragmentSize;
+    private final TokenCache tokenCache;
+
+    /**
+     * @param analyzer     The index analyzer, used when the postings don't store offsets.
+     * @param preTag       Tag inserted before a highlighted term.
+     * @param postTag      Tag inserted after a highlighted term.
+     * @param fragmentSize Approximate number of characters of a fragment.
+     */
+    public SpanHighlighter(Analyzer analyzer, String preTag, String postTag, int fragmentSize) {
+        this(analyzer, preTag, postTag, fragmentSize, null);
+    }
+
+    /**
+     * @param analyzer     The index analyzer, used when the postings don't store offsets.
+     * @param preTag       Tag inserted before a highlighted term.
+     * @param postTag      Tag inserted after a highlighted term.
+     * @param fragmentSize Approximate number of characters of a fragment.
+     * @param tokenCache   Cache of the hits' tokens, used when the postings don't store offsets, or null to
+     *                     re-analyze the hits every time. It must use the same analyzer.
+     */
+    public SpanHighlighter(Analyzer analyzer, String preTag, String postTag, int fragmentSize,
+                           TokenCache tokenCache) {
+        this.analyzer = analyzer;
+        this.preTag = preTag;
+        this.postTag = postTag;
+        this.fragmentSize = fragmentSize;
+        this.tokenCache = tokenCache;
+    }
+
+    /**
+     * Highlight the top hits of a search.
+     *
+     * @param field        The highlighted field. It must be stored.
+     * @param searcher     The searcher of the search.
+     * @param collector    The collector of the search.
+     * @param topDocs      The top hits of the collector.
+     * @param maxFragments Maximum number of fragments per hit.
+     * @return The highlighted fragments of each hit, separated by "...", or null for a hit without matches.
+     * @throws IOException An exception occurred.
+     */
+    public String[] highlight(String field, IndexSearcher searcher, SpanMatchCollector collector, TopDocs topDocs,
+                              int maxFragments) throws IOException {
+        String[] highlights = new String[topDocs.scoreDocs.length];
+        for (int i = 0; i < highlights.length; i++) {
+            ScoreDoc scoreDoc = topDocs.scoreDocs[i];
+            List<SpanMatchCollector.SpanMatch> matches = collector.getMatches(scoreDoc.doc);
+            if (matches.isEmpty()) {
+                continue;
+            }
+            Document document = searcher.doc(scoreDoc.doc);
+            String text = document.get(field);
+            if (text == null) {
+                continue;
+            }
+            if (tokenCache == null) {
+                highlights[i] = highlight(field, text, matches, maxFragments);
+            } else {
+                highlights[i] = highlight(text, matches, maxFragments,
+                        () -> tokenCache.getTokenStream(searcher.getIndexReader(), scoreDoc.doc, field, document));
+            }
+        }
+        return highlights;
+    }
+
+    /**
+     * Highlight the span matches of a text.
+     *
+     * @param field        The field of the text.
+     * @param text         The text.
+     * @param matches      The span matches in the text.
+     * @param maxFragments Maximum number of fragments.
+     * @return The highlighted fragments, separated by "...".
+     * @throws IOException An exception occurred.
+     */
+    public String highlight(String field, String text, List<SpanMatchCollector.SpanMatch> matches,
+                            int maxFragments) throws IOException {
+        return highlight(text, matches, maxFragments, () -> analyzer.tokenStream(field, text));
+    }
+
+    private String highlight(String text, List<SpanMatchCollector.SpanMatch> matches, int maxFragments,
+                             TokenStreamSource tokens) throws IOException {
+        Map<Integer, int[]> positionOffsets = null;
+
+        // Terms of every match, as [start, end) offsets; a term may be part of several matches
+        List<int[]> terms = new ArrayList<>();
+        // Spans of every match, as [start, end) offsets
+        List<int[]> spans = new ArrayList<>();
+        for (SpanMatchCollector.SpanMatch match : matches) {
+            int spanStart = Integer.MAX_VALUE;
+            int spanEnd = -1;
+            for (int i = 0; i < match.getTermCount(); i++) {
+                int[] offsets = {match.getTermStartOffset(i), match.getTermEndOffset(i)};
+                if (offsets[0] < 0) {
+                    if (positionOffsets == null) {
+                        positionOffsets = analyze(tokens.get());
+                    }
+                    offsets = positionOffsets.get(match.getTermPosition(i));
+                    if (offsets == null) {
+                        continue;
+                    }
+                }
+                terms.add(offsets);
+                spanStart = Math.min(spanStart, offsets[0]);
+                spanEnd = Math.max(spanEnd, offsets[1]);
+            }
+            if (spanEnd >= 0) {
+                spans.add(new int[]{spanStart, spanEnd});
+            }
+        }
+        terms.sort((a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(b[1], a[1]));
+        spans.sort((a, b) -> Integer.compare(a[0], b[0]));
+
+        // One fragment around each span not already covered by the previous fragment
+        List<int[]> fragments = new ArrayList<>();
+        for (int[] span : spans) {
+            if (fragments.size() == maxFragments) {
+                break;
+            }
+            int[] last = fragments.isEmpty() ? null : fragments.get(fragments.size() - 1);
+            if (last != null && span[0] < last[1]) {
+                last[1] = Math.max(last[1], span[1]);
+                continue;
+            }
+            int margin = Math.max(0, (fragmentSize - (span[1] - span[0])) / 2);
+            int start = Math.max(last == null ? 0 : last[1], wordStart(text, Math.max(0, span[0] - margin)));
+            int end = wordEnd(text, Math.min(text.length(), span[1] + margin));
+            fragments.add(new int[]{start, end});
+        }
+
+        StringBuilder highlight = new StringBuilder();
+        int term = 0;
+        for (int[] fragment : fragments) {
+            if (highlight.length() > 0) {
+                highlight.append("...");
+            }
+            int position = fragment[0];
+            for (; term < terms.size() && terms.get(term)[0] < fragment[1]; term++) {
+                int[] offsets = terms.get(term);
+                if (offsets[0] < position) {
+                    // Overlaps a term already highlighted
+                    continue;
+                }
+                highlight.append(text, position, offsets[0])
+                        .append(preTag).append(text, offsets[0], offsets[1]).append(postTag);
+                position = offsets[1];
+            }
+            highlight.append(text, position, Math.max(position, fragment[1]));
+        }
+        return highlight.toString();
+    }
+
+    /**
+     * Map the positions of a token stream to their offsets.
+     */
+    private static Map<Integer, int[]> analyze(TokenStream tokens) throws IOException {
+        Map<Integer, int[]> offsets = new HashMap<>();
+        try (TokenStream stream = tokens) {
+            PositionIncrementAttribute positionIncrement = stream.addAttribute(PositionIncrementAttribute.class);
+            OffsetAttribute offset = stream.addAttribute(OffsetAttribute.class);
+            stream.reset();
+            int position = -1;
+            while (stream.incrementToken()) {
+                position += positionIncrement.getPositionIncrement();
+                offsets.put(position, new int[]{offset.startOffset(), offset.endOffset()});
+            }
+            stream.end();
+        }
+        return offsets;
+    }
+
+    private static int wordStart(String text, int offset) {
+        while (offset > 0 && !Character.isWhitespace(text.charAt(offset - 1))) {
+            offset--;
+        }
+        return offset;
+    }
+
+    private static int wordEnd(String text, int offset) {
+        while (offset < text.length() && !Character.isWhitespace(text.charAt(offset))) {
+            offset++;
+        }
+        return offset;
+    }
+
+    /**
+     * The token stream of the highlighted text, obtained only if the matches lack offsets.
+     */
+    private interface TokenStreamSource {
+        TokenStream get() throws IOException;
+    }
+}
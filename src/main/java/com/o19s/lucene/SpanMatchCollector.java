@@ -0,0 +1,466 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.search.spans.SpanCollector;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanScorer;
+import org.apache.lucene.search.spans.SpanWeight;
+import org.apache.lucene.search.spans.Spans;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.PriorityQueue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Collector of the top hits of a span query, along with the positions and offsets of their span matches.
+ * <p>
+ * The span query must be wrapped with {@link #wrap(SpanQuery)}, so that its spans are read with offsets and report
+ * each span to this collector while the document is scored. The positions and the offsets of the terms of the spans
+ * of the current document are buffered, and only turned into matches when the document enters the top hits. The
+ * matches of a document are dropped when it is pushed out of the top hits, so the spans are iterated once, by the
+ * search itself, and matches are only kept for the top hits, for {@link SpanHighlighter} to highlight them.
+ * <p>
+ * A collector is used for a single search, by a single thread.
+ */
+public class SpanMatchCollector implements Collector {
+
+    private final int numHits;
+    private final HitQueue queue;
+    private final MatchBuffer buffer = new MatchBuffer();
+    // Matches of the top hits, by doc id
+    private final Map<Integer, List<SpanMatch>> matches = new HashMap<>();
+    private int totalHits;
+
+    /**
+     * @param numHits Number of top hits to collect.
+     */
+    public SpanMatchCollector(int numHits) {
+        if (numHits <= 0) {
+            throw new IllegalArgumentException(String.format("numHits must be > 0, got %d", numHits));
+        }
+        this.numHits = numHits;
+        this.queue = new HitQueue(numHits);
+    }
+
+    /**
+     * Wrap a span query, so that this collector can collect the matches of its top hits.
+     *
+     * @param query The span query.
+     * @return The query to search.
+     */
+    public SpanQuery wrap(SpanQuery query) {
+        return new RecordingSpanQuery(query, this);
+    }
+
+    @Override
+    public boolean needsScores() {
+        return true;
+    }
+
+    @Override
+    public LeafCollector getLeafCollector(LeafReaderContext context) {
+        final int docBase = context.docBase;
+        buffer.clear(-1);
+        return new LeafCollector() {
+            private Scorer scorer;
+
+            @Override
+            public void setScorer(Scorer scorer) {
+                this.scorer = scorer;
+            }
+
+            @Override
+            public void collect(int doc) throws IOException {
+                totalHits++;
+                // Scoring iterates the spans of the doc, which fills the buffer
+                float score = scorer.score();
+                if (queue.size() == numHits) {
+                    if (!(score > queue.top().score)) {
+                        // Not competitive: ties are broken by doc id, and later docs always lose
+                        return;
+                    }
+                    matches.remove(queue.pop().doc);
+                }
+                queue.add(new Hit(docBase + doc, score));
+                matches.put(docBase + doc, buffer.doc == doc
+                        ? buffer.toSpanMatches() : Collections.<SpanMatch>emptyList());
+            }
+        };
+    }
+
+    /**
+     * @return The top hits, by decreasing score.
+     */
+    public TopDocs topDocs() {
+        List<Hit> hits = new ArrayList<>();
+        for (Hit hit : queue) {
+            hits.add(hit);
+        }
+        Collections.sort(hits, (a, b) -> a.score != b.score ? Float.compare(b.score, a.score) : a.doc - b.doc);
+        ScoreDoc[] scoreDocs = new ScoreDoc[hits.size()];
+        for (int i = 0; i < scoreDocs.length; i++) {
+            scoreDocs[i] = new ScoreDoc(hits.get(i).doc, hits.get(i).score);
+        }
+        return new TopDocs(totalHits, scoreDocs, hits.isEmpty() ? Float.NaN : hits.get(0).score);
+    }
+
+    /**
+     * @param doc A top hit.
+     * @return The span matches of the hit, sorted by position, or an empty list if the doc isn't a top hit.
+     */
+    public List<SpanMatch> getMatches(int doc) {
+        List<SpanMatch> docMatches = matches.get(doc);
+        return docMatches == null ? Collections.<SpanMatch>emptyList() : docMatches;
+    }
+
+    /**
+     * A span matched by the query, with the positions and the offsets of its terms.
+     * Offsets are -1 when the field's postings don't store them.
+     */
+    public static class SpanMatch {
+
+        private final int startPosition;
+        private final int endPosition;
+        private final int[] termPositions;
+        private final int[] termStartOffsets;
+        private final int[] termEndOffsets;
+
+        SpanMatch(int startPosition, int endPosition, int[] termPositions, int[] termStartOffsets,
+                  int[] termEndOffsets) {
+            this.startPosition = startPosition;
+            this.endPosition = endPosition;
+            this.termPositions = termPositions;
+            this.termStartOffsets = termStartOffsets;
+            this.termEndOffsets = termEndOffsets;
+        }
+
+        public int getStartPosition() {
+            return startPosition;
+        }
+
+        /**
+         * @return The position following the last position of the span.
+         */
+        public int getEndPosition() {
+            return endPosition;
+        }
+
+        public int getTermCount() {
+            return termPositions.length;
+        }
+
+        public int getTermPosition(int i) {
+            return termPositions[i];
+        }
+
+        public int getTermStartOffset(int i) {
+            return termStartOffsets[i];
+        }
+
+        public int getTermEndOffset(int i) {
+            return termEndOffsets[i];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%d, %d)", startPosition, endPosition);
+        }
+    }
+
+    private static class Hit {
+        final int doc;
+        final float score;
+
+        Hit(int doc, float score) {
+            this.doc = doc;
+            this.score = score;
+        }
+    }
+
+    private static class HitQueue extends PriorityQueue<Hit> {
+
+        HitQueue(int size) {
+            super(size);
+        }
+
+        @Override
+        protected boolean lessThan(Hit a, Hit b) {
+            return a.score != b.score ? a.score < b.score : a.doc > b.doc;
+        }
+    }
+
+    /**
+     * Span query recording the spans of the documents it scores into a collector. It searches as the wrapped query.
+     */
+    private static class RecordingSpanQuery extends SpanQuery {
+
+        private final SpanQuery in;
+        private final SpanMatchCollector collector;
+
+        RecordingSpanQuery(SpanQuery in, SpanMatchCollector collector) {
+            this.in = Objects.requireNonNull(in);
+            this.collector = Objects.requireNonNull(collector);
+        }
+
+        @Override
+        public String getField() {
+            return in.getField();
+        }
+
+        @Override
+        public Query rewrite(IndexReader reader) throws IOException {
+            Query rewritten = in.rewrite(reader);
+            if (rewritten != in) {
+                return new RecordingSpanQuery((SpanQuery) rewritten, collector);
+            }
+            return this;
+        }
+
+        @Override
+        public SpanWeight createWeight(IndexSearcher searcher, boolean needsScores, float boost) throws IOException {
+            return new RecordingSpanWeight(this, searcher, in.createWeight(searcher, needsScores, boost),
+                    collector.buffer);
+        }
+
+        @Override
+        public String toString(String field) {
+            return String.format("recording(%s)", in.toString(field));
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return sameClassAs(other)
+                    && in.equals(((RecordingSpanQuery) other).in)
+                    && collector == ((RecordingSpanQuery) other).collector;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * classHash() + in.hashCode();
+        }
+    }
+
+    /**
+     * Span weight scoring as the wrapped weight, with spans read with offsets and recorded into a buffer.
+     */
+    private static class RecordingSpanWeight extends SpanWeight {
+
+        private final SpanWeight in;
+        private final MatchBuffer buffer;
+
+        RecordingSpanWeight(SpanQuery query, IndexSearcher searcher, SpanWeight in, MatchBuffer buffer)
+                throws IOException {
+            // Scores are computed by the wrapped weight, which doesn't need term contexts here
+            super(query, searcher, null, 1f);
+            this.in = in;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void extractTermContexts(Map<Term, TermContext> contexts) {
+            in.extractTermContexts(contexts);
+        }
+
+        @Override
+        public Spans getSpans(LeafReaderContext context, Postings requiredPostings) throws IOException {
+            Spans spans = in.getSpans(context, requiredPostings.atLeast(Postings.OFFSETS));
+            return spans == null ? null : new RecordingSpans(spans, buffer);
+        }
+
+        @Override
+        public SpanScorer scorer(LeafReaderContext context) throws IOException {
+            Spans spans = getSpans(context, Postings.POSITIONS);
+            return spans == null ? null : new SpanScorer(this, spans, in.getSimScorer(context));
+        }
+
+        @Override
+        public Similarity.SimScorer getSimScorer(LeafReaderContext context) throws IOException {
+            return in.getSimScorer(context);
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            return in.explain(context, doc);
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+            in.extractTerms(terms);
+        }
+
+        @Override
+        public boolean isCacheable(LeafReaderContext context) {
+            return in.isCacheable(context);
+        }
+    }
+
+    /**
+     * Spans adding each span the scorer visits to a buffer. The hooks of the wrapped spans are not called, so queries
+     * relying on them to score, like payload score queries, can't be wrapped.
+     */
+    private static class RecordingSpans extends Spans {
+
+        private final Spans in;
+        private final MatchBuffer buffer;
+
+        RecordingSpans(Spans in, MatchBuffer buffer) {
+            this.in = in;
+            this.buffer = buffer;
+        }
+
+        @Override
+        protected void doStartCurrentDoc() {
+            buffer.clear(in.docID());
+        }
+
+        @Override
+        protected void doCurrentSpans() throws IOException {
+            buffer.add(in);
+        }
+
+        @Override
+        public int nextStartPosition() throws IOException {
+            return in.nextStartPosition();
+        }
+
+        @Override
+        public int startPosition() {
+            return in.startPosition();
+        }
+
+        @Override
+        public int endPosition() {
+            return in.endPosition();
+        }
+
+        @Override
+        public int width() {
+            return in.width();
+        }
+
+        @Override
+        public void collect(SpanCollector collector) throws IOException {
+            in.collect(collector);
+        }
+
+        @Override
+        public float positionsCost() {
+            return in.positionsCost();
+        }
+
+        @Override
+        public TwoPhaseIterator asTwoPhaseIterator() {
+            return in.asTwoPhaseIterator();
+        }
+
+        @Override
+        public int docID() {
+            return in.docID();
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return in.nextDoc();
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return in.advance(target);
+        }
+
+        @Override
+        public long cost() {
+            return in.cost();
+        }
+    }
+
+    /**
+     * Span collector buffering the spans of the current doc, with the positions and offsets of their terms.
+     */
+    private static class MatchBuffer implements SpanCollector {
+
+        // Leaf doc id the spans belong to
+        private int doc = -1;
+        private int spanCount;
+        private int[] spanStarts = new int[4];
+        private int[] spanEnds = new int[4];
+        // Index of the term following the last term of each span
+        private int[] spanTermEnds = new int[4];
+        private int termCount;
+        private int[] positions = new int[4];
+        private int[] startOffsets = new int[4];
+        private int[] endOffsets = new int[4];
+
+        void clear(int doc) {
+            this.doc = doc;
+            spanCount = 0;
+            termCount = 0;
+        }
+
+        void add(Spans spans) throws IOException {
+            if (spanCount == spanStarts.length) {
+                spanStarts = ArrayUtil.grow(spanStarts);
+                spanEnds = ArrayUtil.grow(spanEnds, spanStarts.length);
+                spanTermEnds = ArrayUtil.grow(spanTermEnds, spanStarts.length);
+            }
+            spanStarts[spanCount] = spans.startPosition();
+            spanEnds[spanCount] = spans.endPosition();
+            spans.collect(this);
+            spanTermEnds[spanCount] = termCount;
+            spanCount++;
+        }
+
+        @Override
+        public void collectLeaf(PostingsEnum postings, int position, Term term) throws IOException {
+            if (termCount == positions.length) {
+                positions = ArrayUtil.grow(positions);
+                startOffsets = ArrayUtil.grow(startOffsets, positions.length);
+                endOffsets = ArrayUtil.grow(endOffsets, positions.length);
+            }
+            positions[termCount] = position;
+            startOffsets[termCount] = postings.startOffset();
+            endOffsets[termCount] = postings.endOffset();
+            termCount++;
+        }
+
+        @Override
+        public void reset() {
+            // Drop the terms of the span being collected
+            termCount = spanCount == 0 ? 0 : spanTermEnds[spanCount - 1];
+        }
+
+        List<SpanMatch> toSpanMatches() {
+            List<SpanMatch> spanMatches = new ArrayList<>(spanCount);
+            int from = 0;
+            for (int i = 0; i < spanCount; i++) {
+                int to = spanTermEnds[i];
+                spanMatches.add(new SpanMatch(spanStarts[i], spanEnds[i], Arrays.copyOfRange(positions, from, to),
+                        Arrays.copyOfRange(startOffsets, from, to), Arrays.copyOfRange(endOffsets, from, to)));
+                from = to;
+            }
+            return spanMatches;
+        }
+    }
+}
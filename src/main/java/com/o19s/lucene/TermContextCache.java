@@ -0,0 +1,158 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per-reader cache of term states.
+ * <p>
+ * Building a {@link TermContext} seeks the term in the terms dictionary of every segment. Term and span term
+ * queries created through this cache carry their pre-built {@link TermContext}, so their weights skip those
+ * seeks. The cache of a reader is shared by all the queries run against that reader, and is dropped when the
+ * reader is closed: a reopened reader gets a fresh cache.
+ * <p>
+ * A cache holds at most {@link #DEFAULT_MAX_TERMS} terms: the least recently used ones are evicted, so that a
+ * long-lived reader doesn't keep the state of every term it was ever queried for.
+ */
+public class TermContextCache {
+
+    public static final int DEFAULT_MAX_TERMS = 10000;
+
+    private static final ConcurrentMap<IndexReader.CacheKey, TermContextCache> CACHES = new ConcurrentHashMap<>();
+
+    private final IndexReaderContext readerContext;
+    private final int maxTerms;
+    // In access order, for the LRU eviction
+    private final LinkedHashMap<Term, TermContext> termContexts =
+            new LinkedHashMap<Term, TermContext>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Term, TermContext> eldest) {
+                    return size() > maxTerms;
+                }
+            };
+    private final QueryTreeRewriter rewriter = new QueryTreeRewriter() {
+        @Override
+        protected Query rewriteLeaf(Query query) {
+            return query instanceof TermQuery ? termQuery(((TermQuery) query).getTerm()) : query;
+        }
+
+        @Override
+        protected SpanQuery rewriteSpanLeaf(SpanQuery query) {
+            return query instanceof SpanTermQuery ? spanTermQuery(((SpanTermQuery) query).getTerm()) : query;
+        }
+    };
+
+    TermContextCache(IndexReader reader) {
+        this(reader, DEFAULT_MAX_TERMS);
+    }
+
+    TermContextCache(IndexReader reader, int maxTerms) {
+        if (maxTerms <= 0) {
+            throw new IllegalArgumentException(String.format("maxTerms must be > 0, got %d", maxTerms));
+        }
+        this.readerContext = reader.getContext();
+        this.maxTerms = maxTerms;
+    }
+
+    /**
+     * Get the term state cache shared by all the users of a reader.
+     *
+     * @param reader An index reader.
+     * @return The reader's cache.
+     */
+    public static TermContextCache forReader(IndexReader reader) {
+        IndexReader.CacheHelper cacheHelper = reader.getReaderCacheHelper();
+        if (cacheHelper == null) {
+            // The reader cannot notify us when it's closed: don't share its cache
+            return new TermContextCache(reader);
+        }
+        IndexReader.CacheKey key = cacheHelper.getKey();
+        TermContextCache cache = CACHES.get(key);
+        if (cache == null) {
+            TermContextCache created = new TermContextCache(reader);
+            cache = CACHES.putIfAbsent(key, created);
+            if (cache == null) {
+                cache = created;
+                cacheHelper.addClosedListener(CACHES::remove);
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Get the term state of a term, looking it up in the terms dictionary on the first call only.
+     *
+     * @param term A term.
+     * @return The term's context.
+     */
+    public TermContext get(Term term) {
+        synchronized (termContexts) {
+            TermContext termContext = termContexts.get(term);
+            if (termContext != null) {
+                return termContext;
+            }
+        }
+        // Seek the terms dictionaries outside of the lock: concurrent misses of the same term both build it
+        TermContext built;
+        try {
+            built = TermContext.build(readerContext, term);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        synchronized (termContexts) {
+            TermContext termContext = termContexts.putIfAbsent(term, built);
+            return termContext != null ? termContext : built;
+        }
+    }
+
+    /**
+     * @return The number of cached terms.
+     */
+    public int size() {
+        synchronized (termContexts) {
+            return termContexts.size();
+        }
+    }
+
+    public TermQuery termQuery(Term term) {
+        return new TermQuery(term, get(term));
+    }
+
+    public SpanTermQuery spanTermQuery(Term term) {
+        return new SpanTermQuery(term, get(term));
+    }
+
+    /**
+     * Rebuild a query tree so that all its term and span term queries use the cached term states.
+     * Query types that are not known are returned unchanged.
+     *
+     * @param query A query.
+     * @return The equivalent query using the cache.
+     */
+    public Query apply(Query query) {
+        return rewriter.apply(query);
+    }
+
+    /**
+     * Rebuild a span query tree so that all its span term queries use the cached term states.
+     *
+     * @param query A span query.
+     * @return The equivalent span query using the cache.
+     */
+    public SpanQuery apply(SpanQuery query) {
+        return rewriter.apply(query);
+    }
+}
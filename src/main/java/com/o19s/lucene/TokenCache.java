@@ -0,0 +1,394 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.packed.PackedInts;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Bounded cache of the analyzed tokens of stored fields, for the highlighters and the span renderers that
+ * re-analyze the text of the documents they show.
+ * <p>
+ * A document's tokens are kept as packed arrays of term ordinals, position increments and start/end offsets. The
+ * ordinals point into a dictionary of the terms shared by all the cached documents. Entries are keyed by
+ * (segment, doc id, field), are dropped with their segment, and the least recently used ones are evicted when the
+ * memory used by the entries and the dictionary exceeds the cache's budget. The terms of the dictionary can't be
+ * evicted one by one: when the dictionary alone exceeds the budget, after all the entries were evicted, it's
+ * started over.
+ * <p>
+ * Only the term, the offsets and the position increment of the tokens are replayed: they're the attributes the
+ * highlighters read.
+ */
+public class TokenCache implements Accountable {
+
+    private final Analyzer analyzer;
+    private final long maxBytes;
+
+    private Dictionary dictionary = new Dictionary();
+    private final LinkedHashMap<Key, Tokens> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<IndexReader.CacheKey> segments = new HashSet<>();
+    private long entriesBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long dictionaryResets;
+
+    /**
+     * @param analyzer The analyzer of the cached fields.
+     * @param maxBytes Memory budget of the cached tokens.
+     */
+    public TokenCache(Analyzer analyzer, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException(String.format("maxBytes must be > 0, got %d", maxBytes));
+        }
+        this.analyzer = Objects.requireNonNull(analyzer);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get the token stream of a document's field. Tokens are cached per segment, by segment core, doc and field: on
+     * a miss, the field's stored value in the given document is analyzed and cached. Segments without a core cache
+     * helper are analyzed without caching.
+     *
+     * @param reader   The index reader.
+     * @param docId    The document id, in the index reader.
+     * @param field    The field.
+     * @param document The stored fields of the document.
+     * @return The token stream, or null if the document has no value for the field.
+     * @throws IOException An exception occurred.
+     */
+    public TokenStream getTokenStream(IndexReader reader, int docId, String field, Document document)
+            throws IOException {
+        LeafReaderContext leaf = reader.leaves().get(ReaderUtil.subIndex(docId, reader.leaves()));
+        IndexReader.CacheHelper cacheHelper = leaf.reader().getCoreCacheHelper();
+        if (cacheHelper == null) {
+            // Uncacheable segment
+            String text = document.get(field);
+            return text == null ? null : analyzer.tokenStream(field, text);
+        }
+        Key key = new Key(cacheHelper.getKey(), docId - leaf.docBase, field);
+        Tokens tokens = get(key);
+        if (tokens == null) {
+            String text = document.get(field);
+            if (text == null) {
+                return null;
+            }
+            tokens = analyze(field, text);
+            put(key, tokens, cacheHelper);
+        }
+        return new CachedTokenStream(tokens);
+    }
+
+    private synchronized Tokens get(Key key) {
+        Tokens tokens = entries.get(key);
+        if (tokens == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return tokens;
+    }
+
+    private void put(Key key, Tokens tokens, IndexReader.CacheHelper cacheHelper) {
+        boolean firstOfSegment;
+        synchronized (this) {
+            if (tokens.dictionary != dictionary) {
+                // The dictionary was started over during the analysis: the tokens are only replayed this time
+                return;
+            }
+            firstOfSegment = segments.add(key.segment);
+            Tokens previous = entries.put(key, tokens);
+            if (previous != null) {
+                entriesBytes -= previous.ramBytesUsed();
+            }
+            entriesBytes += tokens.ramBytesUsed();
+            Iterator<Tokens> eldest = entries.values().iterator();
+            while (entriesBytes + dictionary.bytes > maxBytes && eldest.hasNext()) {
+                entriesBytes -= eldest.next().ramBytesUsed();
+                eldest.remove();
+                evictions++;
+            }
+            if (dictionary.bytes > maxBytes) {
+                // Only terms of evicted entries are left; the streams being replayed keep their own dictionary
+                dictionary = new Dictionary();
+                dictionaryResets++;
+            }
+        }
+        if (firstOfSegment) {
+            cacheHelper.addClosedListener(this::removeSegment);
+        }
+    }
+
+    private synchronized void removeSegment(IndexReader.CacheKey segment) {
+        segments.remove(segment);
+        Iterator<Map.Entry<Key, Tokens>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Tokens> entry = it.next();
+            if (entry.getKey().segment == segment) {
+                entriesBytes -= entry.getValue().ramBytesUsed();
+                it.remove();
+            }
+        }
+    }
+
+    private Tokens analyze(String field, String text) throws IOException {
+        int count = 0;
+        int[] ords = new int[16];
+        int[] positionIncrements = new int[16];
+        int[] startOffsets = new int[16];
+        int[] endOffsets = new int[16];
+        int finalOffset;
+        BytesRefBuilder term = new BytesRefBuilder();
+        Dictionary dictionary = dictionary();
+        try (TokenStream stream = analyzer.tokenStream(field, text)) {
+            CharTermAttribute termAttribute = stream.addAttribute(CharTermAttribute.class);
+            PositionIncrementAttribute positionIncrement = stream.addAttribute(PositionIncrementAttribute.class);
+            OffsetAttribute offset = stream.addAttribute(OffsetAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                if (count == ords.length) {
+                    ords = ArrayUtil.grow(ords);
+                    positionIncrements = ArrayUtil.grow(positionIncrements, ords.length);
+                    startOffsets = ArrayUtil.grow(startOffsets, ords.length);
+                    endOffsets = ArrayUtil.grow(endOffsets, ords.length);
+                }
+                term.copyChars(termAttribute);
+                ords[count] = ord(dictionary, term.get(), termAttribute);
+                positionIncrements[count] = positionIncrement.getPositionIncrement();
+                startOffsets[count] = offset.startOffset();
+                endOffsets[count] = offset.endOffset();
+                count++;
+            }
+            stream.end();
+            finalOffset = offset.endOffset();
+        }
+        return new Tokens(dictionary, pack(ords, count), pack(positionIncrements, count), pack(startOffsets, count),
+                pack(endOffsets, count), finalOffset);
+    }
+
+    private synchronized Dictionary dictionary() {
+        return dictionary;
+    }
+
+    private synchronized int ord(Dictionary dictionary, BytesRef term, CharTermAttribute chars) {
+        int ord = dictionary.terms.add(term);
+        if (ord < 0) {
+            return -ord - 1;
+        }
+        if (ord == dictionary.chars.length) {
+            dictionary.chars = Arrays.copyOf(dictionary.chars, ArrayUtil.oversize(ord + 1,
+                    RamUsageEstimator.NUM_BYTES_OBJECT_REF));
+        }
+        dictionary.chars[ord] = Arrays.copyOf(chars.buffer(), chars.length());
+        // Term bytes and chars, plus the ordinal's slots in the hash, in the pool's offsets and in the chars
+        dictionary.bytes += term.length + RamUsageEstimator.sizeOf(dictionary.chars[ord])
+                + 2 * Integer.BYTES + RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+        return ord;
+    }
+
+    private synchronized char[][] chars(Dictionary dictionary) {
+        return dictionary.chars;
+    }
+
+    private static PackedInts.Reader pack(int[] values, int count) {
+        int max = 0;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, values[i]);
+        }
+        PackedInts.Mutable packed = PackedInts.getMutable(count, PackedInts.bitsRequired(max), PackedInts.COMPACT);
+        for (int i = 0; i < count; i++) {
+            packed.set(i, values[i]);
+        }
+        return packed;
+    }
+
+    /**
+     * @return Number of cached documents' fields.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return Number of times the dictionary was started over.
+     */
+    public synchronized long getDictionaryResets() {
+        return dictionaryResets;
+    }
+
+    /**
+     * @return Memory used by the dictionary.
+     */
+    public synchronized long getDictionaryBytes() {
+        return dictionary.bytes;
+    }
+
+    /**
+     * @return Memory used by the cached tokens, not counting the dictionary.
+     */
+    public synchronized long getEntriesBytes() {
+        return entriesBytes;
+    }
+
+    /**
+     * @return Approximate memory used by the cached tokens and the dictionary.
+     */
+    @Override
+    public synchronized long ramBytesUsed() {
+        return entriesBytes + dictionary.bytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TokenCache(size=%d, hits=%d, misses=%d, evictions=%d, bytes=%d, dictionaryBytes=%d)",
+                size(), getHits(), getMisses(), getEvictions(), getEntriesBytes(), getDictionaryBytes());
+    }
+
+    private static class Key {
+        final IndexReader.CacheKey segment;
+        final int doc;
+        final String field;
+
+        Key(IndexReader.CacheKey segment, int doc, String field) {
+            this.segment = segment;
+            this.doc = doc;
+            this.field = field;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return segment == key.segment && doc == key.doc && field.equals(key.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * segment.hashCode() + doc) + field.hashCode();
+        }
+    }
+
+    /**
+     * Terms of the cached tokens, by ordinal. Accessed under the cache's lock.
+     */
+    private static class Dictionary {
+        final BytesRefHash terms = new BytesRefHash();
+        // The chars of the terms by ordinal, for the replay: the array is only grown by copy
+        char[][] chars = new char[16][];
+        long bytes;
+    }
+
+    /**
+     * The tokens of a document's field.
+     */
+    private static class Tokens implements Accountable {
+        final Dictionary dictionary;
+        final PackedInts.Reader ords;
+        final PackedInts.Reader positionIncrements;
+        final PackedInts.Reader startOffsets;
+        final PackedInts.Reader endOffsets;
+        final int finalOffset;
+
+        Tokens(Dictionary dictionary, PackedInts.Reader ords, PackedInts.Reader positionIncrements,
+               PackedInts.Reader startOffsets, PackedInts.Reader endOffsets, int finalOffset) {
+            this.dictionary = dictionary;
+            this.ords = ords;
+            this.positionIncrements = positionIncrements;
+            this.startOffsets = startOffsets;
+            this.endOffsets = endOffsets;
+            this.finalOffset = finalOffset;
+        }
+
+        int size() {
+            return ords.size();
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 5 * RamUsageEstimator.NUM_BYTES_OBJECT_REF
+                    + Integer.BYTES
+                    + ords.ramBytesUsed() + positionIncrements.ramBytesUsed()
+                    + startOffsets.ramBytesUsed() + endOffsets.ramBytesUsed();
+        }
+    }
+
+    /**
+     * Token stream replaying cached tokens.
+     */
+    private class CachedTokenStream extends TokenStream {
+
+        private final Tokens tokens;
+        private final CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
+        private final PositionIncrementAttribute positionIncrement = addAttribute(PositionIncrementAttribute.class);
+        private final OffsetAttribute offset = addAttribute(OffsetAttribute.class);
+        private final char[][] terms;
+        private int next;
+
+        CachedTokenStream(Tokens tokens) {
+            this.tokens = tokens;
+            // The terms of the tokens were added to their dictionary before the tokens were cached
+            this.terms = chars(tokens.dictionary);
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            next = 0;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (next == tokens.size()) {
+                return false;
+            }
+            clearAttributes();
+            char[] term = terms[(int) tokens.ords.get(next)];
+            termAttribute.copyBuffer(term, 0, term.length);
+            positionIncrement.setPositionIncrement((int) tokens.positionIncrements.get(next));
+            offset.setOffset((int) tokens.startOffsets.get(next), (int) tokens.endOffsets.get(next));
+            next++;
+            return true;
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            offset.setOffset(tokens.finalOffset, tokens.finalOffset);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class BatchSearcherTest {
+
+    @Test
+    public void testBatchSearch() throws Exception {
+        Analyzer analyzer = new StandardAnalyzer();
+
+        final String[] DOCS = {
+                "the quick brown fox jumps over the lazy dog",
+                "the quick red fox jumps over the sleepy cat",
+                "the lazy dog sleeps"
+        };
+
+        Directory directory = TestUtils.index("title", DOCS, analyzer);
+        DirectoryReader ireader = DirectoryReader.open(directory);
+
+        QueryParser parser = new QueryParser("title", analyzer);
+        String[] test_queries = new String[]{
+                "qui*",
+                "qu*ck",
+                "quic?",
+                "qu?ck",
+                "lazy",
+                "qui*"
+        };
+        List<Query> queries = new ArrayList<>();
+        for (String query_string : test_queries) {
+            queries.add(parser.parse(query_string));
+        }
+
+        try (BatchSearcher searcher = new BatchSearcher(ireader, 2)) {
+            List<CompletableFuture<TopDocs>> futures = searcher.search(queries, 10);
+            assertEquals(queries.size(), futures.size());
+
+            for (int i = 0; i < queries.size(); i++) {
+                TopDocs batched = futures.get(i).get();
+                TopDocs single = searcher.search(queries.get(i), 10);
+                System.out.println(String.format("Query %s: %d hits", queries.get(i), batched.totalHits));
+                assertEquals(single.totalHits, batched.totalHits);
+                assertEquals(single.scoreDocs.length, batched.scoreDocs.length);
+                for (int j = 0; j < single.scoreDocs.length; j++) {
+                    assertEquals(single.scoreDocs[j].doc, batched.scoreDocs[j].doc);
+                    assertEquals(single.scoreDocs[j].score, batched.scoreDocs[j].score, 0.0f);
+                }
+            }
+
+            // Duplicated queries share the same execution
+            assertSame(futures.get(0), futures.get(5));
+        }
+
+        ireader.close();
+        directory.close();
+    }
+}
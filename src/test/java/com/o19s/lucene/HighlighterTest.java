@@ -5,18 +5,30 @@ import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.highlight.*;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
 import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
 import org.apache.lucene.search.vectorhighlight.*;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
 import org.junit.Test;
 
 import java.io.FileWriter;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 
 /**
@@ -235,19 +247,218 @@ public class HighlighterTest {
         }
     }
 
+    /**
+     * Highlight with the offsets stored in the postings: no term vectors, no re-analysis.
+     */
+    @Test
+    public void withPostingsOffsets() throws Exception {
+        Analyzer analyzer = new StandardAnalyzer();
+        final String fieldName = "title";
+        IndexProfile profile = new IndexProfile(analyzer)
+                .add(FieldProfile.postingsHighlightedText(fieldName));
+
+        final String[] DOCS = {
+                "the quick brown fox jumps over the lazy dog",
+                "the quick gold fox jumped over the lazy black dog",
+                "the quick fox jumps over the black dog",
+                "the red fox jumped over the lazy dark gray dog"
+        };
+        List<Map<String, String>> docs = new ArrayList<>();
+        for (String text : DOCS) {
+            docs.add(Collections.singletonMap(fieldName, text));
+        }
+        Directory directory = TestUtils.index(new RAMDirectory(), profile, docs);
+
+        DirectoryReader ireader = DirectoryReader.open(directory);
+        IndexSearcher isearcher = new IndexSearcher(ireader);
+        Query query = new QueryParser(fieldName, analyzer).parse("quick OR \"lazy dog\"~1");
+        TopDocs topDocs = isearcher.search(query, 10);
+
+        UnifiedHighlighter highlighter = HighlighterFactory.newPostingsHighlighter(isearcher, analyzer);
+        String[] fragments = highlighter.highlight(fieldName, query, topDocs);
+        for (int i = 0; i < topDocs.scoreDocs.length; i++) {
+            System.out.println(String.format("Doc %s snippet: %s", topDocs.scoreDocs[i].doc, fragments[i]));
+        }
+        assertEquals("the <b>quick</b> brown fox jumps over the <b>lazy</b> <b>dog</b>",
+                fragments[indexOf(topDocs, 0)]);
+
+        ireader.close();
+        directory.close();
+    }
+
+    /**
+     * Offsets in the postings take less space than term vectors, for the same hits. The indexing and highlighting
+     * latencies of both are measured by {@link RegressionBenchmark}.
+     */
+    @Test
+    public void postingsOffsetsVsTermVectors() throws Exception {
+        Analyzer analyzer = new StandardAnalyzer();
+        final String fieldName = "title";
+        List<Map<String, String>> docs = new SyntheticCorpus(42, 1000).generate(1000, 20, 40, "id", fieldName);
+
+        RAMDirectory vectors = new RAMDirectory();
+        TestUtils.index(vectors, new IndexProfile(analyzer)
+                .add(FieldProfile.id("id"))
+                .add(FieldProfile.vectorHighlightedText(fieldName)), docs);
+        RAMDirectory postings = new RAMDirectory();
+        TestUtils.index(postings, new IndexProfile(analyzer)
+                .add(FieldProfile.id("id"))
+                .add(FieldProfile.postingsHighlightedText(fieldName)), docs);
+        assertTrue(postings.ramBytesUsed() < vectors.ramBytesUsed());
+
+        Query query = new QueryParser(fieldName, analyzer).parse("sleepy OR \"lazy dog\"~1");
+        DirectoryReader vectorsReader = DirectoryReader.open(vectors);
+        DirectoryReader postingsReader = DirectoryReader.open(postings);
+        TopDocs vectorsHits = new IndexSearcher(vectorsReader).search(query, 100);
+        TopDocs postingsHits = new IndexSearcher(postingsReader).search(query, 100);
+        assertTrue(vectorsHits.totalHits > 0);
+        assertEquals(vectorsHits.totalHits, postingsHits.totalHits);
+
+        vectorsReader.close();
+        postingsReader.close();
+        vectors.close();
+        postings.close();
+    }
+
+    /**
+     * The nested span query of SpanQueryTest: "quick fox" near "lazy dog" or "sleepy cat".
+     */
+    private static SpanQuery nestedSpanQuery(String fieldName) {
+        SpanQuery quick = new SpanTermQuery(new Term(fieldName, "quick"));
+        SpanQuery fox = new SpanTermQuery(new Term(fieldName, "fox"));
+        SpanNearQuery quickFox = new SpanNearQuery(new SpanQuery[]{quick, fox}, 1, true);
+        SpanNearQuery lazyDog = new SpanNearQuery(new SpanQuery[]{
+                new SpanTermQuery(new Term(fieldName, "lazy")), new SpanTermQuery(new Term(fieldName, "dog"))}, 0, true);
+        SpanNearQuery sleepyCat = new SpanNearQuery(new SpanQuery[]{
+                new SpanTermQuery(new Term(fieldName, "sleepy")), new SpanTermQuery(new Term(fieldName, "cat"))}, 0, true);
+        return new SpanOrQuery(
+                new SpanNearQuery(new SpanQuery[]{quickFox, lazyDog}, 3, true),
+                new SpanNearQuery(new SpanQuery[]{quickFox, sleepyCat}, 3, true));
+    }
+
+    /**
+     * Highlight the span matches recorded while the top hits are collected, with the offsets of the postings and,
+     * without offsets in the postings, by re-analyzing the text. Matches are only kept for the top hits: those of a
+     * doc pushed out of the top hits are dropped.
+     */
+    @Test
+    public void withRecordedSpanMatches() throws Exception {
+        Analyzer analyzer = new StandardAnalyzer();
+        final String fieldName = "title";
+        final String[] DOCS = {
+                "the quick brown fox jumps over the lazy dog",
+                "the quick red fox jumps over the sleepy cat",
+                "the lazy dog and the quick fox",
+                "the quick fox jumps over the lazy cat"
+        };
+        List<Map<String, String>> docs = new ArrayList<>();
+        for (String text : DOCS) {
+            docs.add(Collections.singletonMap(fieldName, text));
+        }
+        Directory withOffsets = TestUtils.index(new RAMDirectory(),
+                new IndexProfile(analyzer).add(FieldProfile.postingsHighlightedText(fieldName)), docs);
+        Directory withoutOffsets = TestUtils.index(fieldName, DOCS, analyzer);
+
+        for (Directory directory : new Directory[]{withOffsets, withoutOffsets}) {
+            DirectoryReader ireader = DirectoryReader.open(directory);
+            IndexSearcher isearcher = new IndexSearcher(ireader);
+            SpanMatchCollector collector = new SpanMatchCollector(10);
+            isearcher.search(collector.wrap(nestedSpanQuery(fieldName)), collector);
+            TopDocs topDocs = collector.topDocs();
+            assertEquals(2, topDocs.totalHits);
+            assertEquals(isearcher.search(nestedSpanQuery(fieldName), 10).getMaxScore(), topDocs.getMaxScore(), 1e-6f);
+
+            String[] fragments = HighlighterFactory.newSpanHighlighter(analyzer)
+                    .highlight(fieldName, isearcher, collector, topDocs, 3);
+            for (int i = 0; i < topDocs.scoreDocs.length; i++) {
+                System.out.println(String.format("Doc %s spans %s snippet: %s", topDocs.scoreDocs[i].doc,
+                        collector.getMatches(topDocs.scoreDocs[i].doc), fragments[i]));
+            }
+            assertEquals("the <b>quick</b> brown <b>fox</b> jumps over the <b>lazy</b> <b>dog</b>",
+                    fragments[indexOf(topDocs, 0)]);
+            assertEquals("the <b>quick</b> red <b>fox</b> jumps over the <b>sleepy</b> <b>cat</b>",
+                    fragments[indexOf(topDocs, 1)]);
+
+            // Only the matches of the top hits are collected
+            SpanMatchCollector top1 = new SpanMatchCollector(1);
+            isearcher.search(top1.wrap(nestedSpanQuery(fieldName)), top1);
+            int topDoc = top1.topDocs().scoreDocs[0].doc;
+            assertEquals(collector.getMatches(topDoc).toString(), top1.getMatches(topDoc).toString());
+            assertTrue(top1.getMatches(topDoc == 0 ? 1 : 0).isEmpty());
+
+            ireader.close();
+            directory.close();
+        }
+    }
+
+    /**
+     * The classic highlighter, which re-evaluates the span query for every hit, and the highlighting of the span
+     * matches recorded during the search highlight the same hits. Their latencies are compared by
+     * {@link RegressionBenchmark}.
+     */
+    @Test
+    public void recordedSpanMatchesVsQueryScorer() throws Exception {
+        Analyzer analyzer = new StandardAnalyzer();
+        final String fieldName = "title";
+        final String[] phrases = {
+                "the quick brown fox", "jumps over", "the lazy dog", "the quick fox", "sleeps", "the sleepy cat",
+                "a red fox", "and the lazy cat"
+        };
+        List<Map<String, String>> docs = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j < 10; j++) {
+                text.append(phrases[(i + j * (1 + i % 3)) % phrases.length]).append(' ');
+            }
+            docs.add(Collections.singletonMap(fieldName, text.toString().trim()));
+        }
+        Directory directory = TestUtils.index(new RAMDirectory(),
+                new IndexProfile(analyzer).add(FieldProfile.postingsHighlightedText(fieldName)), docs);
+        DirectoryReader ireader = DirectoryReader.open(directory);
+        IndexSearcher isearcher = new IndexSearcher(ireader);
+        SpanQuery query = nestedSpanQuery(fieldName);
+
+        TopDocs classicHits = isearcher.search(query, 100);
+        QueryScorer scorer = new QueryScorer(query, fieldName);
+        Highlighter classic = new Highlighter(scorer);
+        classic.setTextFragmenter(new SimpleSpanFragmenter(scorer));
+
+        SpanMatchCollector collector = new SpanMatchCollector(100);
+        isearcher.search(collector.wrap(query), collector);
+        TopDocs recordedHits = collector.topDocs();
+        String[] fragments = HighlighterFactory.newSpanHighlighter(analyzer)
+                .highlight(fieldName, isearcher, collector, recordedHits, 3);
+
+        assertEquals(classicHits.totalHits, recordedHits.totalHits);
+        assertEquals(classicHits.scoreDocs.length, recordedHits.scoreDocs.length);
+        assertTrue(recordedHits.scoreDocs.length > 0);
+        for (int i = 0; i < recordedHits.scoreDocs.length; i++) {
+            assertEquals(classicHits.scoreDocs[i].doc, recordedHits.scoreDocs[i].doc);
+            String text = isearcher.doc(classicHits.scoreDocs[i].doc).get(fieldName);
+            assertNotNull(classic.getBestFragments(analyzer.tokenStream(fieldName, text), text, 3, "..."));
+            assertTrue(fragments[i].contains("<b>"));
+        }
+
+        ireader.close();
+        directory.close();
+    }
+
+    private static int indexOf(TopDocs topDocs, int doc) {
+        for (int i = 0; i < topDocs.scoreDocs.length; i++) {
+            if (topDocs.scoreDocs[i].doc == doc) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Instantiate a fast vector highlighter.
      *
      * @return The instantiated highlighter.
      */
     FastVectorHighlighter getFastVectorHighlighter() {
-        FragListBuilder fragListBuilder = new SimpleFragListBuilder();
-        FragmentsBuilder fragmentBuilder =
-                new ScoreOrderFragmentsBuilder(
-                        BaseFragmentsBuilder.COLORED_PRE_TAGS,
-                        BaseFragmentsBuilder.COLORED_POST_TAGS);
-        return new FastVectorHighlighter(true, true,
-                fragListBuilder, fragmentBuilder);
+        return HighlighterFactory.newFastVectorHighlighter();
     }
 
     /**
@@ -256,8 +467,6 @@ public class HighlighterTest {
      * @return The instantiated highlighter.
      */
     UnifiedHighlighter getUnifiedHighlighter(IndexSearcher indexSearcher, Analyzer indexAnalyzer) {
-        UnifiedHighlighter highlighter = new UnifiedHighlighter(indexSearcher, indexAnalyzer);
-        highlighter.setHighlightPhrasesStrictly(true);
-        return highlighter;
+        return HighlighterFactory.newUnifiedHighlighter(indexSearcher, indexAnalyzer);
     }
 }
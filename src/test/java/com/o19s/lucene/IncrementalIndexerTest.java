@@ -0,0 +1,95 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalIndexerTest {
+
+    @Test
+    public void testHardDeletes() throws Exception {
+        assertUpdatesAndDeletes(false);
+    }
+
+    @Test
+    public void testSoftDeletes() throws Exception {
+        assertUpdatesAndDeletes(true);
+    }
+
+    private void assertUpdatesAndDeletes(boolean softDeletes) throws Exception {
+        Directory directory = new RAMDirectory();
+        IncrementalIndexer indexer = new IncrementalIndexer(directory, new StandardAnalyzer(), "f", softDeletes,
+                2, 100, Long.MAX_VALUE);
+
+        indexer.index(Arrays.asList(
+                IncrementalIndexer.Event.add("1", "the quick brown fox jumps over the lazy dog"),
+                IncrementalIndexer.Event.add("2", "the quick red fox jumps over the sleepy cat"),
+                IncrementalIndexer.Event.update("1", "the slow brown fox sleeps"),
+                IncrementalIndexer.Event.delete("2")));
+
+        // Both batches are visible, but nothing was committed yet
+        IndexSearcher searcher = indexer.getSearcherManager().acquire();
+        try {
+            assertEquals(1, searcher.getIndexReader().numDocs());
+            assertEquals(0, searcher.count(new TermQuery(new Term("f", "quick"))));
+            assertEquals(1, searcher.count(new TermQuery(new Term("f", "slow"))));
+            assertEquals(1, searcher.count(new TermQuery(new Term(IncrementalIndexer.ID_FIELD, "1"))));
+        } finally {
+            indexer.getSearcherManager().release(searcher);
+        }
+        assertEquals(4, indexer.getVisibilityLatency().getCount());
+        System.out.println(String.format("Visibility latency: %s", indexer.getVisibilityLatency()));
+
+        // Buffered event applied on close
+        indexer.index(IncrementalIndexer.Event.add("3", "the lazy dog"));
+        indexer.close();
+
+        DirectoryReader reader = DirectoryReader.open(directory);
+        assertEquals(2, reader.numDocs());
+        reader.close();
+        directory.close();
+    }
+
+    /**
+     * Fewer events than a batch become visible, then committed, without more events or an explicit flush.
+     */
+    @Test
+    public void testPartialBatch() throws Exception {
+        Directory directory = new RAMDirectory();
+        IncrementalIndexer indexer = new IncrementalIndexer(directory, new StandardAnalyzer(), "f", false,
+                100, 100, 200).setMaxBatchDelay(50);
+        indexer.index(IncrementalIndexer.Event.add("1", "the quick brown fox jumps over the lazy dog"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (indexer.getVisibilityLatency().getCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        IndexSearcher searcher = indexer.getSearcherManager().acquire();
+        try {
+            assertEquals(1, searcher.count(new TermQuery(new Term("f", "fox"))));
+        } finally {
+            indexer.getSearcherManager().release(searcher);
+        }
+        System.out.println(String.format("Visibility latency: %s", indexer.getVisibilityLatency()));
+        assertTrue(indexer.getVisibilityLatency().getMaxMillis() >= 50);
+
+        while (!DirectoryReader.indexExists(directory) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        DirectoryReader reader = DirectoryReader.open(directory);
+        assertEquals(1, reader.numDocs());
+        reader.close();
+        indexer.close();
+        directory.close();
+    }
+}
@@ -0,0 +1,77 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class IndexProfileTest {
+
+    private static List<Map<String, String>> docs(int count) {
+        return new SyntheticCorpus(42, 1000).generate(count, 20, 20, "id", "title");
+    }
+
+    @Test
+    public void testPerFieldConfiguration() throws Exception {
+        IndexProfile profile = new IndexProfile(new StandardAnalyzer())
+                .add(FieldProfile.id("id")
+                        .setAnalyzer(new KeywordAnalyzer())
+                        .setDocValuesType(DocValuesType.SORTED))
+                .add(FieldProfile.text("title"));
+
+        RAMDirectory directory = new RAMDirectory();
+        TestUtils.index(directory, profile, docs(10));
+
+        DirectoryReader reader = DirectoryReader.open(directory);
+        LeafReader leafReader = reader.leaves().get(0).reader();
+
+        FieldInfo id = leafReader.getFieldInfos().fieldInfo("id");
+        assertEquals(IndexOptions.DOCS, id.getIndexOptions());
+        assertEquals(DocValuesType.SORTED, id.getDocValuesType());
+        assertFalse(id.hasVectors());
+        assertEquals(FieldProfile.MEMORY_POSTINGS_FORMAT, id.getAttribute("PerFieldPostingsFormat.format"));
+
+        FieldInfo title = leafReader.getFieldInfos().fieldInfo("title");
+        assertEquals(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS, title.getIndexOptions());
+        assertFalse(title.hasVectors());
+
+        IndexSearcher searcher = new IndexSearcher(reader);
+        assertEquals(1, searcher.count(new TermQuery(new Term("id", "doc-3"))));
+        assertEquals("doc-3", searcher.doc(searcher.search(new TermQuery(new Term("id", "doc-3")), 1)
+                .scoreDocs[0].doc).get("id"));
+
+        reader.close();
+        directory.close();
+    }
+
+    /**
+     * The tuned profile indexes the same documents in less space than the tests' configuration, with term vectors on
+     * every field. The indexing throughput of both is measured by {@link RegressionBenchmark}.
+     */
+    @Test
+    public void testTunedProfileIsSmaller() throws Exception {
+        List<Map<String, String>> docs = docs(1000);
+
+        RAMDirectory vectors = new RAMDirectory();
+        TestUtils.index(vectors, RegressionBenchmark.termVectorsProfile("title"), docs);
+        RAMDirectory tuned = new RAMDirectory();
+        TestUtils.index(tuned, RegressionBenchmark.tunedProfile("title"), docs);
+        assertTrue(tuned.ramBytesUsed() < vectors.ramBytesUsed());
+
+        vectors.close();
+        tuned.close();
+    }
+}
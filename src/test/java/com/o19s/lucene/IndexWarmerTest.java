@@ -0,0 +1,74 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.function.FunctionRangeQuery;
+import org.apache.lucene.queries.function.valuesource.TermFreqValueSource;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class IndexWarmerTest {
+
+    @Test
+    public void testWarmOnReopenAndMerge() throws Exception {
+        Analyzer analyzer = new StandardAnalyzer();
+        List<Query> queries = Arrays.asList(
+                new SpanNearQuery(new SpanQuery[]{
+                        new SpanTermQuery(new Term("f", "quick")),
+                        new SpanTermQuery(new Term("f", "fox"))}, 1, true),
+                new FunctionRangeQuery(new TermFreqValueSource("f", "fox", "f", new BytesRef("fox")),
+                        1, null, true, true),
+                new QueryParser("f", analyzer).parse("qui*"));
+        IndexWarmer warmer = new IndexWarmer(queries, 10);
+
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriterConfig config = warmer.install(new IndexWriterConfig(analyzer));
+        IncrementalIndexer indexer = new IncrementalIndexer(directory, config, "f", false,
+                1, 100, Long.MAX_VALUE, warmer);
+        long initialWarmCount = warmer.getWarmCount();
+        assertEquals(1, initialWarmCount);
+        // The initial index is empty
+        assertEquals(0, warmer.getWarmedSegmentCount());
+
+        // One refresh per event
+        indexer.index(IncrementalIndexer.Event.add("1", "the quick brown fox jumps over the lazy dog"));
+        indexer.index(IncrementalIndexer.Event.add("2", "the quick red fox jumps over the sleepy cat"));
+        assertEquals(initialWarmCount + 2, warmer.getWarmCount());
+        // Each refresh only warms the new segment
+        assertEquals(2, warmer.getWarmedSegmentCount());
+
+        // The merged segment is warmed before being published
+        indexer.getWriter().forceMerge(1);
+        assertEquals(initialWarmCount + 3, warmer.getWarmCount());
+        assertEquals(3, warmer.getWarmedSegmentCount());
+        System.out.println(String.format("Warmed %d times in %.3fms", warmer.getWarmCount(), warmer.getWarmMillis()));
+
+        indexer.getSearcherManager().maybeRefreshBlocking();
+        IndexSearcher searcher = indexer.getSearcherManager().acquire();
+        try {
+            assertEquals(2, searcher.search(queries.get(0), 10).totalHits);
+            assertEquals(1, searcher.getIndexReader().leaves().size());
+            // The merged segment isn't warmed again by the refresh
+            assertEquals(3, warmer.getWarmedSegmentCount());
+        } finally {
+            indexer.getSearcherManager().release(searcher);
+        }
+
+        indexer.close();
+        directory.close();
+    }
+}
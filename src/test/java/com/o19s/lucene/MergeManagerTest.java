@@ -0,0 +1,111 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.PrintStreamInfoStream;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MergeManagerTest {
+
+    private static List<Map<String, String>> docs(int count) {
+        return new SyntheticCorpus(42, 1000).generate(count, 20, 20, "id", "title");
+    }
+
+    @Test
+    public void testConfiguration() throws Exception {
+        MergeManager mergeManager = new MergeManager(MergeManager.Profile.STEADY_STATE)
+                .setMaxMergesAndThreads(3, 2)
+                .setAutoIOThrottle(false);
+        IndexWriterConfig config = mergeManager.install(new IndexWriterConfig(new StandardAnalyzer()));
+
+        ConcurrentMergeScheduler scheduler = (ConcurrentMergeScheduler) config.getMergeScheduler();
+        assertEquals(3, scheduler.getMaxMergeCount());
+        assertEquals(2, scheduler.getMaxThreadCount());
+        assertFalse(scheduler.getAutoIOThrottle());
+
+        TieredMergePolicy mergePolicy = (TieredMergePolicy) config.getMergePolicy();
+        assertEquals(10, mergePolicy.getSegmentsPerTier(), 0);
+        mergeManager.beginBulk();
+        assertEquals(MergeManager.Profile.BULK, mergeManager.getProfile());
+        // The policy already installed isn't changed
+        assertEquals(10, mergePolicy.getSegmentsPerTier(), 0);
+        mergePolicy = (TieredMergePolicy) mergeManager.install(
+                new IndexWriterConfig(new StandardAnalyzer())).getMergePolicy();
+        assertEquals(30, mergePolicy.getSegmentsPerTier(), 0);
+        assertEquals(30, mergePolicy.getMaxMergeAtOnce());
+
+        // The policy of an open writer is replaced
+        IndexWriter writer = new IndexWriter(new RAMDirectory(), mergeManager.install(config));
+        mergeManager.setProfile(writer, MergeManager.Profile.STEADY_STATE);
+        assertNotSame(mergePolicy, writer.getConfig().getMergePolicy());
+        assertEquals(10, ((TieredMergePolicy) writer.getConfig().getMergePolicy()).getSegmentsPerTier(), 0);
+        writer.close();
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        IndexProfile profile = new IndexProfile(new StandardAnalyzer())
+                .add(FieldProfile.id("id"))
+                .add(FieldProfile.text("title"));
+        MergeManager mergeManager = new MergeManager(MergeManager.Profile.STEADY_STATE)
+                .setMaxMergesAndThreads(2, 1)
+                .setAutoIOThrottle(true)
+                .setForceMergeAfterBulk(1)
+                .setInfoStream(new PrintStreamInfoStream(System.out));
+        // Flush often, for merges to happen during the load
+        IndexWriterConfig config = profile.newIndexWriterConfig().setMaxBufferedDocs(100);
+
+        RAMDirectory directory = new RAMDirectory();
+        long start = System.nanoTime();
+        TestUtils.index(directory, config, profile, docs(5000), mergeManager);
+        System.out.println(String.format("Bulk load: %.1f ms, %s", (System.nanoTime() - start) / 1e6, mergeManager));
+
+        assertEquals(MergeManager.Profile.STEADY_STATE, mergeManager.getProfile());
+        assertTrue(mergeManager.getMergeCount() > 0);
+        assertTrue(mergeManager.getMergedSegmentCount() >= 50);
+        assertTrue(mergeManager.getMergedBytes() > 0);
+
+        DirectoryReader reader = DirectoryReader.open(directory);
+        assertEquals(1, reader.leaves().size());
+        assertEquals(5000, reader.numDocs());
+        reader.close();
+        directory.close();
+    }
+
+    /**
+     * Without a force merge, the index is merged down to the steady-state profile in steps.
+     */
+    @Test
+    public void testSteppedSwitch() throws Exception {
+        IndexProfile profile = new IndexProfile(new StandardAnalyzer())
+                .add(FieldProfile.id("id"))
+                .add(FieldProfile.text("title"));
+        MergeManager mergeManager = new MergeManager(MergeManager.Profile.STEADY_STATE)
+                .setMaxMergesAndThreads(2, 1)
+                .setSteadyStateSteps(3);
+        IndexWriterConfig config = profile.newIndexWriterConfig().setMaxBufferedDocs(100);
+
+        RAMDirectory directory = new RAMDirectory();
+        TestUtils.index(directory, config, profile, docs(5000), mergeManager);
+        System.out.println(String.format("Stepped switch: %s", mergeManager));
+
+        assertEquals(MergeManager.Profile.STEADY_STATE, mergeManager.getProfile());
+        assertEquals(10, ((TieredMergePolicy) config.getMergePolicy()).getSegmentsPerTier(), 0);
+        DirectoryReader reader = DirectoryReader.open(directory);
+        // 50 flushed segments, merged 10 at once
+        assertTrue(reader.leaves().size() < 20);
+        assertEquals(5000, reader.numDocs());
+        reader.close();
+        directory.close();
+    }
+}
@@ -0,0 +1,97 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.function.FunctionRangeQuery;
+import org.apache.lucene.queries.function.valuesource.TermFreqValueSource;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class QueryBudgetTest {
+
+    private static Directory directory;
+    private static DirectoryReader reader;
+    private static IndexSearcher searcher;
+
+    @BeforeClass
+    public static void testSetup() throws IOException {
+        String[] docs = new String[100];
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = i % 2 == 0
+                    ? "the quick brown fox and red fox jump over the lazy dog. The red fox jumped higher over the lazy dog."
+                    : "the quick red fox jumps over the sleepy cat";
+        }
+        directory = TestUtils.index("f", docs, new StandardAnalyzer());
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+    }
+
+    @AfterClass
+    public static void testTeardown() throws IOException {
+        reader.close();
+        directory.close();
+    }
+
+    private static Query nestedSpanQuery() {
+        SpanQuery quickFox = new SpanNearQuery(new SpanQuery[]{
+                new SpanTermQuery(new Term("f", "quick")),
+                new SpanTermQuery(new Term("f", "fox"))}, 2, true);
+        SpanQuery lazyDog = new SpanNearQuery(new SpanQuery[]{
+                new SpanTermQuery(new Term("f", "lazy")),
+                new SpanTermQuery(new Term("f", "dog"))}, 0, true);
+        return new SpanNearQuery(new SpanQuery[]{quickFox, lazyDog}, 10, true);
+    }
+
+    @Test
+    public void testWithinBudget() throws Exception {
+        Query query = nestedSpanQuery();
+        QueryBudget budget = new QueryBudget(60000, 1000000);
+
+        QueryBudget.BudgetedTopDocs hits = budget.search(searcher, query, 10);
+        TopDocs expected = searcher.search(query, 10);
+
+        System.out.println(String.format("Visits: %d", budget.getVisits()));
+        assertFalse(hits.isPartial());
+        assertEquals(50, hits.totalHits);
+        assertEquals(expected.totalHits, hits.totalHits);
+        assertEquals(expected.scoreDocs[0].score, hits.scoreDocs[0].score, 0.0f);
+        assertTrue(budget.getVisits() > 0);
+    }
+
+    @Test
+    public void testNestedSpanVisitsCap() throws Exception {
+        QueryBudget budget = new QueryBudget(60000, 200);
+
+        QueryBudget.BudgetedTopDocs hits = budget.search(searcher, nestedSpanQuery(), 10);
+
+        assertTrue(hits.isPartial());
+        assertTrue(budget.isExhausted());
+        assertTrue(hits.totalHits < 50);
+    }
+
+    @Test
+    public void testFunctionRangeTimeout() throws Exception {
+        Query query = new FunctionRangeQuery(new TermFreqValueSource("f", "fox", "f", new BytesRef("fox")),
+                2, null, true, true);
+        QueryBudget budget = new QueryBudget(0, Long.MAX_VALUE);
+
+        QueryBudget.BudgetedTopDocs hits = budget.search(searcher, query, 10);
+
+        assertTrue(hits.isPartial());
+        assertTrue(hits.totalHits < 50);
+    }
+}
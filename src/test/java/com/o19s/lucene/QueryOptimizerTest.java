@@ -0,0 +1,238 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.function.FunctionRangeQuery;
+import org.apache.lucene.queries.function.valuesource.TermFreqValueSource;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class QueryOptimizerTest {
+
+    private static Directory directory;
+    private static DirectoryReader reader;
+    private static IndexSearcher searcher;
+    private static QueryOptimizer optimizer;
+
+    @BeforeClass
+    public static void testSetup() throws IOException {
+        final String[] phrases = {
+                "the quick brown fox jumps over the lazy dog",
+                "the quick red fox jumps over the sleepy cat",
+                "the lazy dog sleeps",
+                "the sleepy cat sleeps",
+                "a fox and a red fox and a gray fox"
+        };
+        String[] docs = new String[200];
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = phrases[i % phrases.length] + " " + phrases[(i / phrases.length) % phrases.length];
+        }
+        directory = TestUtils.index("f", docs, new WhitespaceAnalyzer());
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        optimizer = new QueryOptimizer(reader);
+    }
+
+    @AfterClass
+    public static void testTeardown() throws IOException {
+        reader.close();
+        directory.close();
+    }
+
+    private static SpanTermQuery span(String text) {
+        return new SpanTermQuery(new Term("f", text));
+    }
+
+    private static Set<Integer> docs(Query query) throws IOException {
+        Set<Integer> docs = new HashSet<>();
+        for (ScoreDoc scoreDoc : searcher.search(query, reader.maxDoc()).scoreDocs) {
+            docs.add(scoreDoc.doc);
+        }
+        return docs;
+    }
+
+    private static void assertSameScores(Query expected, Query actual) throws IOException {
+        TopDocs expectedTopDocs = searcher.search(expected, reader.maxDoc());
+        TopDocs actualTopDocs = searcher.search(actual, reader.maxDoc());
+        assertEquals(expectedTopDocs.totalHits, actualTopDocs.totalHits);
+        for (int i = 0; i < expectedTopDocs.scoreDocs.length; i++) {
+            assertEquals(expectedTopDocs.scoreDocs[i].doc, actualTopDocs.scoreDocs[i].doc);
+            assertEquals(expectedTopDocs.scoreDocs[i].score, actualTopDocs.scoreDocs[i].score, 1e-5f);
+        }
+    }
+
+    /**
+     * The nested span query of SpanQueryTest: "quick fox" is factored out of the span or.
+     */
+    @Test
+    public void testFactorCommonSubSpans() throws Exception {
+        SpanNearQuery quickFox = new SpanNearQuery(new SpanQuery[]{span("quick"), span("fox")}, 1, true);
+        SpanNearQuery lazyDog = new SpanNearQuery(new SpanQuery[]{span("lazy"), span("dog")}, 0, true);
+        SpanNearQuery sleepyCat = new SpanNearQuery(new SpanQuery[]{span("sleepy"), span("cat")}, 0, true);
+        SpanOrQuery query = new SpanOrQuery(
+                new SpanNearQuery(new SpanQuery[]{quickFox, lazyDog}, 3, true),
+                new SpanNearQuery(new SpanQuery[]{quickFox, sleepyCat}, 3, true),
+                new SpanNearQuery(new SpanQuery[]{quickFox, lazyDog}, 3, true));
+
+        Query optimized = optimizer.apply(query);
+        System.out.println(String.format("Optimized %s into %s", query, optimized));
+        assertTrue(optimized instanceof SpanNearQuery);
+        SpanQuery[] clauses = ((SpanNearQuery) optimized).getClauses();
+        assertEquals(quickFox, clauses[0]);
+        assertTrue(clauses[1] instanceof SpanOrQuery);
+        assertEquals(2, ((SpanOrQuery) clauses[1]).getClauses().length);
+
+        assertFalse(docs(query).isEmpty());
+        assertEquals(docs(query), docs(optimized));
+        assertEquals(optimized, optimizer.apply(optimized));
+    }
+
+    /**
+     * Factoring a sub-span that isn't the last one of an ordered span near query, or sub-spans of different widths,
+     * changes the positions the following sub-spans are matched from: such span near queries are left as is.
+     */
+    @Test
+    public void testFactoringKeepsHits() throws Exception {
+        // "and a red" starts before "a" but ends after it, where "red" is expected
+        SpanNearQuery andARed = new SpanNearQuery(new SpanQuery[]{span("and"), span("a"), span("red")}, 0, true);
+        SpanOrQuery query = new SpanOrQuery(
+                new SpanNearQuery(new SpanQuery[]{andARed, span("red")}, 0, true),
+                new SpanNearQuery(new SpanQuery[]{span("a"), span("red")}, 0, true));
+        SpanNearQuery factoredFirst = new SpanNearQuery(new SpanQuery[]{
+                new SpanOrQuery(andARed, span("a")), span("red")}, 0, true);
+        assertNotEquals(docs(query), docs(factoredFirst));
+
+        Query optimized = optimizer.apply(query);
+        System.out.println(String.format("Optimized %s into %s", query, optimized));
+        assertTrue(optimized instanceof SpanOrQuery);
+        assertFalse(docs(query).isEmpty());
+        assertEquals(docs(query), docs(optimized));
+
+        // The last sub-spans have different widths
+        SpanOrQuery lastDiffer = new SpanOrQuery(
+                new SpanNearQuery(new SpanQuery[]{span("red"), span("fox")}, 1, true),
+                new SpanNearQuery(new SpanQuery[]{span("red"), andARed}, 1, true));
+        Query optimizedLastDiffer = optimizer.apply(lastDiffer);
+        assertTrue(optimizedLastDiffer instanceof SpanOrQuery);
+        assertEquals(docs(lastDiffer), docs(optimizedLastDiffer));
+
+        // The last sub-spans have the same width
+        SpanOrQuery lastSame = new SpanOrQuery(
+                new SpanNearQuery(new SpanQuery[]{span("a"), span("fox")}, 2, true),
+                new SpanNearQuery(new SpanQuery[]{span("a"), span("red")}, 2, true));
+        Query optimizedLastSame = optimizer.apply(lastSame);
+        assertEquals(new SpanNearQuery(new SpanQuery[]{span("a"),
+                optimizer.apply(new SpanOrQuery(span("fox"), span("red")))}, 2, true), optimizedLastSame);
+        assertFalse(docs(lastSame).isEmpty());
+        assertEquals(docs(lastSame), docs(optimizedLastSame));
+    }
+
+    @Test
+    public void testReorderByDocFreq() throws Exception {
+        // "gray" is rarer than "fox"
+        SpanNearQuery unordered = new SpanNearQuery(new SpanQuery[]{span("fox"), span("gray")}, 2, false);
+        SpanNearQuery optimized = (SpanNearQuery) optimizer.apply((SpanQuery) unordered);
+        assertEquals(span("gray"), optimized.getClauses()[0]);
+        assertSameScores(unordered, optimized);
+
+        // Ordered span near queries are left as is
+        SpanNearQuery ordered = new SpanNearQuery(new SpanQuery[]{span("fox"), span("gray")}, 2, true);
+        assertEquals(ordered, optimizer.apply((SpanQuery) ordered));
+
+        BooleanQuery query = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("f", "the")), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term("f", "fox")), BooleanClause.Occur.MUST)
+                .add(new TermQuery(new Term("f", "gray")), BooleanClause.Occur.MUST)
+                .add(new TermQuery(new Term("f", "cat")), BooleanClause.Occur.MUST_NOT)
+                .build();
+        // Boolean clauses are left in order: the conjunction leads with "gray" by itself
+        BooleanQuery optimizedQuery = (BooleanQuery) optimizer.apply(query);
+        System.out.println(String.format("Optimized %s into %s", query, optimizedQuery));
+        assertEquals(query, optimizedQuery);
+    }
+
+    @Test
+    public void testSingleTermSpanNear() throws Exception {
+        SpanNearQuery query = new SpanNearQuery(new SpanQuery[]{span("fox")}, 0, true);
+        // Optimized as a query, not as a span query
+        Query optimized = optimizer.apply((Query) query);
+        assertEquals(new TermQuery(new Term("f", "fox")), optimized);
+        // The span near query itself can't be searched: it requires at least 2 clauses
+        assertSameScores(span("fox"), optimized);
+
+        // Within a span tree, the span term query is kept
+        SpanNearQuery nested = new SpanNearQuery(new SpanQuery[]{query, span("jumps")}, 0, true);
+        assertEquals(new SpanNearQuery(new SpanQuery[]{span("fox"), span("jumps")}, 0, true),
+                optimizer.apply((Query) nested));
+    }
+
+    /**
+     * The term filter testFunctionRangeTermFreq adds by hand is added by the optimizer.
+     */
+    @Test
+    public void testFunctionRangeTermFilter() throws Exception {
+        Query query = new FunctionRangeQuery(QueryOptimizer.termFreq("f", "gray"), 1, null, true, true);
+        Query optimized = optimizer.apply(query);
+        System.out.println(String.format("Optimized %s into %s", query, optimized));
+        BooleanQuery booleanQuery = (BooleanQuery) optimized;
+        assertEquals(new BooleanClause(new TermQuery(new Term("f", "gray")), BooleanClause.Occur.FILTER),
+                booleanQuery.clauses().get(0));
+        assertSameScores(query, optimized);
+
+        // Count the documents visited by each query
+        QueryBudget budget = new QueryBudget(10000, Long.MAX_VALUE);
+        budget.search(searcher, query, 10);
+        QueryBudget optimizedBudget = new QueryBudget(10000, Long.MAX_VALUE);
+        optimizedBudget.search(searcher, optimized, 10);
+        System.out.println(String.format("Visits: %d, optimized: %d", budget.getVisits(),
+                optimizedBudget.getVisits()));
+        assertTrue(optimizedBudget.getVisits() < budget.getVisits());
+
+        // Within a boolean query, the filter is added next to the function range query, not twice
+        BooleanQuery combined = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("f", "the")), BooleanClause.Occur.MUST)
+                .add(query, BooleanClause.Occur.MUST)
+                .build();
+        BooleanQuery optimizedCombined = (BooleanQuery) optimizer.apply(combined);
+        assertEquals(3, optimizedCombined.clauses().size());
+        assertEquals(new BooleanClause(new TermQuery(new Term("f", "gray")), BooleanClause.Occur.FILTER),
+                optimizedCombined.clauses().get(2));
+        assertEquals(optimizedCombined, optimizer.apply(optimizedCombined));
+        assertSameScores(combined, optimizedCombined);
+
+        // A range that doesn't require the term is left as is
+        Query anyFreq = new FunctionRangeQuery(QueryOptimizer.termFreq("f", "gray"), 0, null, true, true);
+        assertEquals(anyFreq, optimizer.apply(anyFreq));
+
+        // The term of other term frequency value sources isn't known
+        Query opaque = new FunctionRangeQuery(
+                new TermFreqValueSource("f", "gray", "f", new BytesRef("gray")), 1, null, true, true);
+        assertEquals(opaque, optimizer.apply(opaque));
+        BooleanQuery opaqueCombined = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("f", "the")), BooleanClause.Occur.MUST)
+                .add(opaque, BooleanClause.Occur.MUST)
+                .build();
+        assertEquals(opaqueCombined, optimizer.apply(opaqueCombined));
+    }
+}
@@ -0,0 +1,509 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.function.FunctionRangeQuery;
+import org.apache.lucene.queries.function.valuesource.TermFreqValueSource;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.highlight.Highlighter;
+import org.apache.lucene.search.highlight.QueryScorer;
+import org.apache.lucene.search.highlight.SimpleSpanFragmenter;
+import org.apache.lucene.search.highlight.TokenSources;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanNotQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
+import org.apache.lucene.search.vectorhighlight.FastVectorHighlighter;
+import org.apache.lucene.search.vectorhighlight.FieldQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Performance regression suite: a fixed mix of searches, highlighting and indexing is run against a deterministic
+ * synthetic corpus, and the median and the 99th percentile latency of every query are compared with a JSON baseline.
+ * <p>
+ * The latencies are relative to a calibration workload, plain term queries that only depend on the Lucene version,
+ * run in alternation with every query: they don't depend on the speed of the machine, so that a baseline recorded on
+ * one machine applies to another one. Each query is measured over several trials, after a
+ * warm-up round, and the median of the trials is compared, so that a single noisy trial doesn't fail the suite.
+ * <p>
+ * The suite is not part of the default build. It runs with the benchmark profile, which fails when a query's
+ * relative median or p99 latency regressed beyond the thresholds:
+ * <pre>
+ * mvn test -Pbenchmark
+ * mvn test -Pbenchmark -Dbenchmark.maxMedianRegression=0.1 -Dbenchmark.maxP99Regression=0.3
+ * </pre>
+ * After an accepted change in performance, or an upgrade of Lucene, which changes the calibration workload, record a
+ * new baseline with -Dbenchmark.updateBaseline=true and commit it.
+ */
+public class RegressionBenchmark {
+
+    private static final String FIELD = "f";
+    private static final long SEED = 42;
+    private static final int DOCS = 10000;
+    private static final int TOP_N = 10;
+    // Documents indexed by an iteration of the indexing queries
+    private static final int INDEXED_DOCS = 100;
+
+    private static final Pattern BASELINE_ENTRY = Pattern.compile("\"([^\"]+)\"\\s*:\\s*\\{\\s*"
+            + "\"relativeMedian\"\\s*:\\s*([-0-9.eE+]+)\\s*,\\s*\"relativeP99\"\\s*:\\s*([-0-9.eE+]+)\\s*}");
+
+    private static Directory directory;
+    private static DirectoryReader reader;
+    private static IndexSearcher searcher;
+    private static Directory postingsDirectory;
+    private static DirectoryReader postingsReader;
+    private static IndexSearcher postingsSearcher;
+    private static Analyzer analyzer;
+
+    /**
+     * A query of the mix. It returns a count of what it produced, hits or fragments, so that its work can't be
+     * optimized away, and so that a query that stops matching doesn't go unnoticed.
+     */
+    private interface BenchmarkCase {
+        int run() throws Exception;
+    }
+
+    /**
+     * Median and p99 latency of a query, relative to the median latency of the calibration workload.
+     */
+    private static class Measure {
+
+        final double relativeMedian;
+        final double relativeP99;
+
+        Measure(double relativeMedian, double relativeP99) {
+            this.relativeMedian = relativeMedian;
+            this.relativeP99 = relativeP99;
+        }
+    }
+
+    @BeforeClass
+    public static void testSetup() throws IOException {
+        analyzer = new StandardAnalyzer();
+        String[] docs = new SyntheticCorpus(SEED, 5000).generate(DOCS, 20, 120);
+
+        // The term vectors are required by the fast vector highlighter
+        directory = index(docs, FieldProfile.vectorHighlightedText(FIELD).toFieldType());
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+
+        // The same documents with offsets in the postings instead, for the postings highlighter
+        postingsDirectory = index(docs, FieldProfile.postingsHighlightedText(FIELD).toFieldType());
+        postingsReader = DirectoryReader.open(postingsDirectory);
+        postingsSearcher = new IndexSearcher(postingsReader);
+    }
+
+    private static Directory index(String[] docs, FieldType fieldType) throws IOException {
+        Directory indexDirectory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(indexDirectory, new IndexWriterConfig(analyzer));
+        for (String text : docs) {
+            Document doc = new Document();
+            doc.add(new Field(FIELD, text, fieldType));
+            writer.addDocument(doc);
+        }
+        // Always search the same segment geometry
+        writer.forceMerge(1);
+        writer.close();
+        return indexDirectory;
+    }
+
+    @AfterClass
+    public static void testTeardown() throws IOException {
+        reader.close();
+        directory.close();
+        postingsReader.close();
+        postingsDirectory.close();
+    }
+
+    private static SpanTermQuery span(String text) {
+        return new SpanTermQuery(new Term(FIELD, text));
+    }
+
+    /**
+     * @param textField The text field.
+     * @return The indexing profile of the tests, with term vectors on every field.
+     */
+    static IndexProfile termVectorsProfile(String textField) {
+        return new IndexProfile(new StandardAnalyzer())
+                .add(FieldProfile.vectorHighlightedText("id"))
+                .add(FieldProfile.vectorHighlightedText(textField));
+    }
+
+    /**
+     * @param textField The text field.
+     * @return The tuned indexing profile: a keyword id and a text field, both without term vectors.
+     */
+    static IndexProfile tunedProfile(String textField) {
+        return new IndexProfile(new StandardAnalyzer())
+                .add(FieldProfile.id("id").setAnalyzer(new KeywordAnalyzer()))
+                .add(FieldProfile.text(textField));
+    }
+
+    /**
+     * @return The calibration workload: a disjunction and a conjunction of frequent terms.
+     */
+    private static BenchmarkCase calibration() {
+        Query disjunction = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term(FIELD, "the")), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term(FIELD, "fox")), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term(FIELD, "term0")), BooleanClause.Occur.SHOULD)
+                .build();
+        Query conjunction = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term(FIELD, "the")), BooleanClause.Occur.MUST)
+                .add(new TermQuery(new Term(FIELD, "dog")), BooleanClause.Occur.MUST)
+                .build();
+        return () -> searcher.search(disjunction, TOP_N).scoreDocs.length
+                + searcher.search(conjunction, TOP_N).scoreDocs.length;
+    }
+
+    /**
+     * @return The query mix, by name.
+     */
+    private static Map<String, BenchmarkCase> queryMix() throws IOException {
+        Map<String, BenchmarkCase> cases = new LinkedHashMap<>();
+
+        SpanQuery spanNear = new SpanNearQuery(new SpanQuery[]{span("quick"), span("fox")}, 1, true);
+        cases.put("span-near", () -> searcher.search(spanNear, TOP_N).totalHits > 0 ? 1 : 0);
+
+        SpanQuery spanOr = new SpanOrQuery(
+                new SpanNearQuery(new SpanQuery[]{span("lazy"), span("dog")}, 0, true),
+                new SpanNearQuery(new SpanQuery[]{span("sleepy"), span("cat")}, 0, true));
+        cases.put("span-or", () -> searcher.search(spanOr, TOP_N).totalHits > 0 ? 1 : 0);
+
+        SpanQuery spanNot = new SpanNotQuery(span("fox"),
+                new SpanNearQuery(new SpanQuery[]{span("red"), span("fox")}, 0, true));
+        cases.put("span-not", () -> searcher.search(spanNot, TOP_N).totalHits > 0 ? 1 : 0);
+
+        Query functionRange = new FunctionRangeQuery(
+                new TermFreqValueSource(FIELD, "fox", FIELD, new BytesRef("fox")), 3, null, true, true);
+        cases.put("function-range", () -> searcher.search(functionRange, TOP_N).totalHits > 0 ? 1 : 0);
+
+        // Parsing is part of the measure
+        cases.put("wildcard", () -> {
+            QueryParser parser = new QueryParser(FIELD, analyzer);
+            return searcher.search(parser.parse("qu*ck AND f?x AND term1*"), TOP_N).totalHits > 0 ? 1 : 0;
+        });
+
+        // The fast vector highlighter doesn't support span queries: the highlighters share a sloppy phrase query
+        Query phrase = new PhraseQuery(1, FIELD, "quick", "fox");
+
+        QueryScorer scorer = new QueryScorer(phrase, FIELD);
+        Highlighter classicHighlighter = new Highlighter(scorer);
+        classicHighlighter.setTextFragmenter(new SimpleSpanFragmenter(scorer));
+        cases.put("highlight-classic", () -> {
+            int fragments = 0;
+            for (ScoreDoc scoreDoc : searcher.search(phrase, TOP_N).scoreDocs) {
+                Document doc = searcher.doc(scoreDoc.doc);
+                String fragment = classicHighlighter.getBestFragment(TokenSources.getTokenStream(FIELD,
+                        reader.getTermVectors(scoreDoc.doc), doc.get(FIELD), analyzer, -1), doc.get(FIELD));
+                fragments += fragment != null ? 1 : 0;
+            }
+            return fragments;
+        });
+
+        FastVectorHighlighter fastVectorHighlighter = HighlighterFactory.newFastVectorHighlighter();
+        cases.put("highlight-fast-vector", () -> {
+            FieldQuery fieldQuery = fastVectorHighlighter.getFieldQuery(phrase, reader);
+            int fragments = 0;
+            for (ScoreDoc scoreDoc : searcher.search(phrase, TOP_N).scoreDocs) {
+                String fragment = fastVectorHighlighter.getBestFragment(fieldQuery, reader, scoreDoc.doc, FIELD, 100);
+                fragments += fragment != null ? 1 : 0;
+            }
+            return fragments;
+        });
+
+        UnifiedHighlighter unifiedHighlighter = HighlighterFactory.newUnifiedHighlighter(searcher, analyzer);
+        cases.put("highlight-unified", () -> {
+            int fragments = 0;
+            for (String fragment : unifiedHighlighter.highlight(FIELD, phrase, searcher.search(phrase, TOP_N))) {
+                fragments += fragment != null ? 1 : 0;
+            }
+            return fragments;
+        });
+
+        UnifiedHighlighter postingsHighlighter = HighlighterFactory.newPostingsHighlighter(postingsSearcher, analyzer);
+        cases.put("highlight-postings", () -> {
+            int fragments = 0;
+            for (String fragment : postingsHighlighter.highlight(FIELD, phrase,
+                    postingsSearcher.search(phrase, TOP_N))) {
+                fragments += fragment != null ? 1 : 0;
+            }
+            return fragments;
+        });
+
+        // Span highlighting: re-evaluating the query per hit, or highlighting the matches recorded by the search
+        QueryScorer spanScorer = new QueryScorer(spanNear, FIELD);
+        Highlighter spanHighlighter = new Highlighter(spanScorer);
+        spanHighlighter.setTextFragmenter(new SimpleSpanFragmenter(spanScorer));
+        cases.put("highlight-span-classic", () -> {
+            int fragments = 0;
+            for (ScoreDoc scoreDoc : postingsSearcher.search(spanNear, TOP_N).scoreDocs) {
+                String text = postingsSearcher.doc(scoreDoc.doc).get(FIELD);
+                String fragment = spanHighlighter.getBestFragment(analyzer.tokenStream(FIELD, text), text);
+                fragments += fragment != null ? 1 : 0;
+            }
+            return fragments;
+        });
+
+        SpanHighlighter recordedHighlighter = HighlighterFactory.newSpanHighlighter(analyzer);
+        cases.put("highlight-span-recorded", () -> {
+            SpanMatchCollector collector = new SpanMatchCollector(TOP_N);
+            postingsSearcher.search(collector.wrap(spanNear), collector);
+            int fragments = 0;
+            for (String fragment : recordedHighlighter.highlight(FIELD, postingsSearcher, collector,
+                    collector.topDocs(), 1)) {
+                fragments += fragment != null ? 1 : 0;
+            }
+            return fragments;
+        });
+
+        // Token streams of the stored text of the top hits, re-analyzed or replayed from the token cache
+        Document[] documents = new Document[TOP_N];
+        for (int doc = 0; doc < documents.length; doc++) {
+            documents[doc] = reader.document(doc);
+        }
+        cases.put("tokens-analyzed", () -> {
+            int tokens = 0;
+            for (Document document : documents) {
+                tokens += consume(analyzer.tokenStream(FIELD, document.get(FIELD)));
+            }
+            return tokens;
+        });
+        TokenCache tokenCache = new TokenCache(analyzer, HighlighterFactory.DEFAULT_TOKEN_CACHE_BYTES);
+        cases.put("tokens-cached", () -> {
+            int tokens = 0;
+            for (int doc = 0; doc < documents.length; doc++) {
+                tokens += consume(tokenCache.getTokenStream(reader, doc, FIELD, documents[doc]));
+            }
+            return tokens;
+        });
+
+        // Indexing throughput of the tests' configuration and of the tuned profile
+        List<Map<String, String>> indexedDocs = new SyntheticCorpus(SEED, 5000)
+                .generate(INDEXED_DOCS, 20, 120, "id", FIELD);
+        IndexProfile termVectors = termVectorsProfile(FIELD);
+        cases.put("index-term-vectors", () -> index(termVectors, indexedDocs));
+        IndexProfile tuned = tunedProfile(FIELD);
+        cases.put("index-tuned", () -> index(tuned, indexedDocs));
+        IndexProfile postingsOffsets = new IndexProfile(new StandardAnalyzer())
+                .add(FieldProfile.id("id").setAnalyzer(new KeywordAnalyzer()))
+                .add(FieldProfile.postingsHighlightedText(FIELD));
+        cases.put("index-postings-offsets", () -> index(postingsOffsets, indexedDocs));
+
+        return cases;
+    }
+
+    /**
+     * Consume a token stream the way a highlighter does, without formatting the tokens.
+     *
+     * @return The number of tokens.
+     */
+    private static int consume(TokenStream stream) throws IOException {
+        CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+        OffsetAttribute offset = stream.addAttribute(OffsetAttribute.class);
+        int count = 0;
+        stream.reset();
+        while (stream.incrementToken()) {
+            count += term.length() > 0 && offset.endOffset() > offset.startOffset() ? 1 : 0;
+        }
+        stream.end();
+        stream.close();
+        return count;
+    }
+
+    /**
+     * @return The number of documents indexed in a new directory.
+     */
+    private static int index(IndexProfile profile, List<Map<String, String>> docs) throws IOException {
+        try (Directory indexDirectory = TestUtils.index(new RAMDirectory(), profile, docs)) {
+            return DirectoryReader.indexExists(indexDirectory) ? docs.size() : 0;
+        }
+    }
+
+    /**
+     * Run a query and the calibration workload in alternation, so that both sample the same speed of the machine, and
+     * measure the latency of every iteration.
+     *
+     * @return The reports of the query and of the calibration workload.
+     */
+    private static LoadGenerator.Report[] measure(BenchmarkCase benchmarkCase, BenchmarkCase calibration,
+                                                  int iterations) throws Exception {
+        long[] latencies = new long[iterations];
+        long[] calibrationLatencies = new long[iterations];
+        long nanos = 0;
+        long calibrationNanos = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            calibration.run();
+            long middle = System.nanoTime();
+            benchmarkCase.run();
+            long end = System.nanoTime();
+            calibrationLatencies[i] = middle - start;
+            latencies[i] = end - middle;
+            calibrationNanos += calibrationLatencies[i];
+            nanos += latencies[i];
+        }
+        return new LoadGenerator.Report[]{
+                new LoadGenerator.Report(iterations, 0, nanos / 1e9, latencies),
+                new LoadGenerator.Report(iterations, 0, calibrationNanos / 1e9, calibrationLatencies)
+        };
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+
+    @Test
+    public void testNoRegression() throws Exception {
+        int warmUpIterations = Integer.getInteger("benchmark.warmUpIterations", 200);
+        int iterations = Integer.getInteger("benchmark.iterations", 200);
+        int trials = Integer.getInteger("benchmark.trials", 5);
+        double maxMedianRegression = Double.parseDouble(System.getProperty("benchmark.maxMedianRegression", "0.25"));
+        double maxP99Regression = Double.parseDouble(System.getProperty("benchmark.maxP99Regression", "0.5"));
+        Path baselinePath = Paths.get(System.getProperty("benchmark.baseline",
+                "src/test/resources/benchmark-baseline.json"));
+        Path resultsPath = Paths.get(System.getProperty("benchmark.results", "target/benchmark-results.json"));
+
+        BenchmarkCase calibration = calibration();
+        Map<String, BenchmarkCase> queryMix = queryMix();
+        // Warm up the JIT and the index with every query before any trial
+        for (int i = 0; i < warmUpIterations; i++) {
+            calibration.run();
+        }
+        for (Map.Entry<String, BenchmarkCase> entry : queryMix.entrySet()) {
+            assertTrue(String.format("%s doesn't match anything", entry.getKey()), entry.getValue().run() > 0);
+            for (int i = 0; i < warmUpIterations; i++) {
+                entry.getValue().run();
+            }
+        }
+
+        Map<String, double[]> relativeMedians = new LinkedHashMap<>();
+        Map<String, double[]> relativeP99s = new LinkedHashMap<>();
+        for (String name : queryMix.keySet()) {
+            relativeMedians.put(name, new double[trials]);
+            relativeP99s.put(name, new double[trials]);
+        }
+        for (int trial = 0; trial < trials; trial++) {
+            for (Map.Entry<String, BenchmarkCase> entry : queryMix.entrySet()) {
+                LoadGenerator.Report[] reports = measure(entry.getValue(), calibration, iterations);
+                LoadGenerator.Report report = reports[0];
+                double calibrationMillis = reports[1].getLatencyMillis(50);
+                System.out.println(String.format("Trial %d %-22s calibration p50=%.3fms, %s",
+                        trial, entry.getKey(), calibrationMillis, report));
+                relativeMedians.get(entry.getKey())[trial] = report.getLatencyMillis(50) / calibrationMillis;
+                relativeP99s.get(entry.getKey())[trial] = report.getLatencyMillis(99) / calibrationMillis;
+            }
+        }
+        Map<String, Measure> results = new LinkedHashMap<>();
+        for (String name : queryMix.keySet()) {
+            results.put(name, new Measure(median(relativeMedians.get(name)), median(relativeP99s.get(name))));
+        }
+        writeMeasures(resultsPath, results);
+
+        if (Boolean.getBoolean("benchmark.updateBaseline")) {
+            writeMeasures(baselinePath, results);
+            System.out.println(String.format("Baseline updated: %s", baselinePath));
+            return;
+        }
+
+        Map<String, Measure> baseline = readMeasures(baselinePath);
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, Measure> entry : results.entrySet()) {
+            Measure expected = baseline.get(entry.getKey());
+            Measure actual = entry.getValue();
+            if (expected == null) {
+                regressions.add(String.format("%s: no baseline", entry.getKey()));
+                continue;
+            }
+            System.out.println(String.format("%-22s median %.2f -> %.2f (%+.1f%%), p99 %.2f -> %.2f (%+.1f%%)",
+                    entry.getKey(), expected.relativeMedian, actual.relativeMedian,
+                    (actual.relativeMedian / expected.relativeMedian - 1) * 100,
+                    expected.relativeP99, actual.relativeP99, (actual.relativeP99 / expected.relativeP99 - 1) * 100));
+            if (actual.relativeMedian > expected.relativeMedian * (1 + maxMedianRegression)) {
+                regressions.add(String.format("%s: relative median %.2f, baseline %.2f",
+                        entry.getKey(), actual.relativeMedian, expected.relativeMedian));
+            }
+            if (actual.relativeP99 > expected.relativeP99 * (1 + maxP99Regression)) {
+                regressions.add(String.format("%s: relative p99 %.2f, baseline %.2f",
+                        entry.getKey(), actual.relativeP99, expected.relativeP99));
+            }
+            if (actual.relativeMedian < expected.relativeMedian * (1 - maxMedianRegression)) {
+                // Not a failure, but the baseline no longer catches a regression back to its level
+                System.out.println(String.format("%s is faster than its baseline: consider updating the baseline",
+                        entry.getKey()));
+            }
+        }
+        assertTrue(String.format("Performance regressions: %s", regressions), regressions.isEmpty());
+    }
+
+    private static Map<String, Measure> readMeasures(Path path) throws IOException {
+        String json = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        Map<String, Measure> measures = new LinkedHashMap<>();
+        Matcher matcher = BASELINE_ENTRY.matcher(json);
+        while (matcher.find()) {
+            measures.put(matcher.group(1),
+                    new Measure(Double.parseDouble(matcher.group(2)), Double.parseDouble(matcher.group(3))));
+        }
+        return measures;
+    }
+
+    private static void writeMeasures(Path path, Map<String, Measure> measures) throws IOException {
+        StringBuilder json = new StringBuilder("{\n");
+        int i = 0;
+        for (Map.Entry<String, Measure> entry : measures.entrySet()) {
+            // The root locale, for the decimal separator
+            json.append(String.format(Locale.ROOT, "  \"%s\": {\"relativeMedian\": %.3f, \"relativeP99\": %.3f}%s\n",
+                    entry.getKey(), entry.getValue().relativeMedian, entry.getValue().relativeP99,
+                    ++i < measures.size() ? "," : ""));
+        }
+        json.append("}\n");
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        Files.write(path, json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
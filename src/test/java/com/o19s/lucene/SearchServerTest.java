@@ -0,0 +1,102 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SearchServerTest {
+
+    private static SearchServer server;
+    private static String baseUrl;
+
+    @BeforeClass
+    public static void testSetup() throws IOException {
+        server = new SearchServer(new RAMDirectory(), new StandardAnalyzer(), "f", 0, 4);
+        server.start();
+        baseUrl = "http://localhost:" + server.getPort();
+
+        String body = "1\tthe quick brown fox and red fox jump over the lazy dog\n"
+                + "2\tthe quick red fox jumps over the sleepy cat\n"
+                + "3\tthe lazy dog sleeps\n";
+        assertEquals("{\"indexed\":3}", request("POST", "/index", body));
+    }
+
+    @AfterClass
+    public static void testTeardown() throws IOException {
+        server.close();
+    }
+
+    private static String request(String method, String path, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                response.write(buffer, 0, read);
+            }
+            String result = response.toString("UTF-8");
+            System.out.println(String.format("%s %s -> %d %s", method, path, status, result));
+            return result;
+        }
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        assertTrue(request("GET", LoadGenerator.searchPath("classic", "qui*"), null)
+                .startsWith("{\"totalHits\":2,\"partial\":false"));
+        assertTrue(request("GET", LoadGenerator.searchPath("span", "quick fox") + "&slop=1", null)
+                .startsWith("{\"totalHits\":2,"));
+        assertTrue(request("GET", LoadGenerator.searchPath("function", "fox") + "&min=2", null)
+                .startsWith("{\"totalHits\":1,"));
+        assertTrue(request("GET", "/search?type=unknown&q=fox", null).startsWith("{\"error\":"));
+
+        // The span and function query terms are analyzed as the indexed text
+        assertTrue(request("GET", LoadGenerator.searchPath("span", "Quick Fox") + "&slop=1", null)
+                .startsWith("{\"totalHits\":2,"));
+        assertTrue(request("GET", LoadGenerator.searchPath("function", "FOX") + "&min=2", null)
+                .startsWith("{\"totalHits\":1,"));
+        assertTrue(request("GET", LoadGenerator.searchPath("function", "red fox"), null).startsWith("{\"error\":"));
+    }
+
+    @Test
+    public void testHighlight() throws Exception {
+        String response = request("GET", "/highlight?q=sleepy", null);
+        assertTrue(response.startsWith("{\"totalHits\":1,\"partial\":false"));
+        assertTrue(response.contains("<b>sleepy</b>"));
+    }
+
+    @Test
+    public void testLoadGenerator() throws Exception {
+        LoadGenerator generator = new LoadGenerator(baseUrl, Arrays.asList(
+                LoadGenerator.searchPath("classic", "quick OR fox"),
+                LoadGenerator.searchPath("span", "lazy dog"),
+                LoadGenerator.searchPath("function", "fox"),
+                "/highlight?q=fox"), 2);
+        LoadGenerator.Report report = generator.run(500);
+        System.out.println(String.format("Load test: %s", report));
+        assertTrue(report.getRequests() > 0);
+        assertEquals(0, report.getErrors());
+    }
+}
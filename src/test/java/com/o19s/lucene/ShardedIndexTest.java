@@ -0,0 +1,123 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ShardedIndexTest {
+
+    private static List<Map<String, String>> docs(int count) {
+        // Varied document lengths and term frequencies, so that the shards' local statistics differ
+        return new SyntheticCorpus(42, 100).generate(count, 5, 18, "id", "title");
+    }
+
+    private static IndexProfile profile() {
+        return new IndexProfile(new StandardAnalyzer())
+                .add(FieldProfile.id("id").setAnalyzer(new KeywordAnalyzer()))
+                .add(FieldProfile.text("title"));
+    }
+
+    private static Map<String, Float> scoresById(TopDocs topDocs, DocLoader loader) throws Exception {
+        Map<String, Float> scores = new HashMap<>();
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            scores.put(loader.id(scoreDoc), scoreDoc.score);
+        }
+        return scores;
+    }
+
+    private interface DocLoader {
+        String id(ScoreDoc scoreDoc) throws Exception;
+    }
+
+    @Test
+    public void testShardedScoresMatchSingleIndex() throws Exception {
+        List<Map<String, String>> docs = docs(200);
+
+        RAMDirectory single = new RAMDirectory();
+        TestUtils.index(single, profile(), docs);
+        DirectoryReader reader = DirectoryReader.open(single);
+        final IndexSearcher searcher = new IndexSearcher(reader);
+
+        List<Directory> directories = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            directories.add(new RAMDirectory());
+        }
+        try (ShardedIndex shardedIndex = new ShardedIndex(directories, profile(), "id", 3)) {
+            shardedIndex.index(docs);
+            shardedIndex.commit();
+            assertEquals(3, shardedIndex.getShardCount());
+
+            try (final ShardedSearcher shardedSearcher = shardedIndex.openSearcher()) {
+                for (int i = 0; i < 3; i++) {
+                    int shardDocs = shardedSearcher.getShardSearcher(i).getIndexReader().numDocs();
+                    System.out.println(String.format("Shard %d: %d docs", i, shardDocs));
+                    assertTrue(shardDocs > 0);
+                }
+
+                Query[] queries = {
+                        new TermQuery(new Term("title", "fox")),
+                        new BooleanQuery.Builder()
+                                .add(new TermQuery(new Term("title", "lazy")), BooleanClause.Occur.MUST)
+                                .add(new TermQuery(new Term("title", "dog")), BooleanClause.Occur.SHOULD)
+                                .add(new TermQuery(new Term("title", "rabbit")), BooleanClause.Occur.SHOULD)
+                                .build()
+                };
+                for (Query query : queries) {
+                    TopDocs expected = searcher.search(query, docs.size());
+                    TopDocs actual = shardedSearcher.search(query, docs.size());
+                    System.out.println(String.format("Query %s: %d hits, top score %f (single), %f (sharded)",
+                            query, expected.totalHits, expected.getMaxScore(), actual.getMaxScore()));
+                    assertEquals(expected.totalHits, actual.totalHits);
+
+                    Map<String, Float> expectedScores = scoresById(expected,
+                            scoreDoc -> searcher.doc(scoreDoc.doc).get("id"));
+                    Map<String, Float> actualScores = scoresById(actual,
+                            scoreDoc -> shardedSearcher.doc(scoreDoc).get("id"));
+                    assertEquals(expectedScores.keySet(), actualScores.keySet());
+                    for (Map.Entry<String, Float> entry : expectedScores.entrySet()) {
+                        assertEquals(entry.getKey(), entry.getValue(), actualScores.get(entry.getKey()), 1e-5f);
+                    }
+                }
+            }
+        }
+
+        reader.close();
+        single.close();
+    }
+
+    @Test
+    public void testRouting() throws Exception {
+        List<Directory> directories = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            directories.add(new RAMDirectory());
+        }
+        try (ShardedIndex shardedIndex = new ShardedIndex(directories, profile(), "id", 2)) {
+            shardedIndex.index(docs(40));
+            shardedIndex.commit();
+            try (ShardedSearcher shardedSearcher = shardedIndex.openSearcher()) {
+                TopDocs topDocs = shardedSearcher.search(new TermQuery(new Term("id", "doc-7")), 10);
+                assertEquals(1, topDocs.totalHits);
+                assertEquals(shardedIndex.shardOf("doc-7"), topDocs.scoreDocs[0].shardIndex);
+                assertEquals("doc-7", shardedSearcher.doc(topDocs.scoreDocs[0]).get("id"));
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.o19s.lucene;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic corpus: the same seed always generates the same documents, on any JVM.
+ * <p>
+ * Documents mix the phrases of the project's tests, so that the span, phrase and highlighting queries have matches,
+ * with filler terms drawn from a skewed distribution: a few terms are very frequent, most are rare, as in natural
+ * text.
+ */
+public class SyntheticCorpus {
+
+    /**
+     * Phrases the documents are made of, besides the filler terms.
+     */
+    public static final String[] PHRASES = {
+            "the quick brown fox jumps over the lazy dog",
+            "the quick red fox jumps over the sleepy cat",
+            "the quick gold fox jumped over the lazy black dog",
+            "the red fox jumped over the lazy dark gray dog",
+            "the lazy dog sleeps",
+            "the sleepy cat sleeps",
+            "a fox and a red fox and a gray fox"
+    };
+
+    private final long seed;
+    private final int vocabularySize;
+
+    /**
+     * @param seed           Random seed.
+     * @param vocabularySize Number of distinct filler terms.
+     */
+    public SyntheticCorpus(long seed, int vocabularySize) {
+        if (vocabularySize <= 0) {
+            throw new IllegalArgumentException(String.format("vocabularySize must be > 0, got %d", vocabularySize));
+        }
+        this.seed = seed;
+        this.vocabularySize = vocabularySize;
+    }
+
+    /**
+     * Generate the documents.
+     *
+     * @param count    Number of documents.
+     * @param minWords Minimum number of words of a document.
+     * @param maxWords Maximum number of words of a document.
+     * @return The documents' text.
+     */
+    public String[] generate(int count, int minWords, int maxWords) {
+        if (minWords <= 0 || maxWords < minWords) {
+            throw new IllegalArgumentException(String.format("Invalid document length range [%d, %d]",
+                    minWords, maxWords));
+        }
+        Random random = new Random(seed);
+        String[] docs = new String[count];
+        for (int i = 0; i < count; i++) {
+            int length = minWords + random.nextInt(maxWords - minWords + 1);
+            StringBuilder text = new StringBuilder();
+            int words = 0;
+            while (words < length) {
+                if (random.nextInt(4) == 0) {
+                    String phrase = PHRASES[random.nextInt(PHRASES.length)];
+                    text.append(phrase);
+                    words += phrase.split(" ").length;
+                } else {
+                    // Log-uniform rank: term0 is the most frequent term
+                    text.append("term").append((int) Math.pow(vocabularySize, random.nextDouble()) - 1);
+                    words++;
+                }
+                text.append(random.nextInt(8) == 0 ? ". " : " ");
+            }
+            docs[i] = text.toString().trim();
+        }
+        return docs;
+    }
+
+    /**
+     * Generate the documents as field values, e.g. for {@link IndexProfile#newDocument(Map)}.
+     *
+     * @param count     Number of documents.
+     * @param minWords  Minimum number of words of a document.
+     * @param maxWords  Maximum number of words of a document.
+     * @param idField   Field of the document ids, "doc-0", "doc-1"...
+     * @param textField Field of the documents' text.
+     * @return The documents.
+     */
+    public List<Map<String, String>> generate(int count, int minWords, int maxWords, String idField,
+                                              String textField) {
+        String[] texts = generate(count, minWords, maxWords);
+        List<Map<String, String>> docs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Map<String, String> doc = new HashMap<>();
+            doc.put(idField, "doc-" + i);
+            doc.put(textField, texts[i]);
+            docs.add(doc);
+        }
+        return docs;
+    }
+}
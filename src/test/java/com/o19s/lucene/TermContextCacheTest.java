@@ -0,0 +1,199 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FilterDirectoryReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TermContextCacheTest {
+
+    private static final String[] DOCS = {
+            "the quick brown fox jumps over the lazy dog",
+            "the quick red fox jumps over the sleepy cat"
+    };
+
+    /**
+     * Reader counting the seeks in its terms dictionaries. Seeks to a known term state are not counted: they don't
+     * look the term up.
+     */
+    private static class SeekCountingReader extends FilterDirectoryReader {
+
+        private final AtomicInteger seeks;
+
+        SeekCountingReader(DirectoryReader in, AtomicInteger seeks) throws IOException {
+            super(in, new SubReaderWrapper() {
+                @Override
+                public LeafReader wrap(LeafReader reader) {
+                    return new FilterLeafReader(reader) {
+                        @Override
+                        public Terms terms(String field) throws IOException {
+                            Terms terms = super.terms(field);
+                            return terms == null ? null : new FilterTerms(terms) {
+                                @Override
+                                public TermsEnum iterator() throws IOException {
+                                    return new FilterTermsEnum(in.iterator()) {
+                                        @Override
+                                        public boolean seekExact(BytesRef text) throws IOException {
+                                            seeks.incrementAndGet();
+                                            return in.seekExact(text);
+                                        }
+
+                                        @Override
+                                        public SeekStatus seekCeil(BytesRef text) throws IOException {
+                                            seeks.incrementAndGet();
+                                            return in.seekCeil(text);
+                                        }
+
+                                        @Override
+                                        public void seekExact(BytesRef term, TermState state) throws IOException {
+                                            in.seekExact(term, state);
+                                        }
+
+                                        @Override
+                                        public TermState termState() throws IOException {
+                                            return in.termState();
+                                        }
+                                    };
+                                }
+                            };
+                        }
+
+                        @Override
+                        public CacheHelper getCoreCacheHelper() {
+                            return in.getCoreCacheHelper();
+                        }
+
+                        @Override
+                        public CacheHelper getReaderCacheHelper() {
+                            return in.getReaderCacheHelper();
+                        }
+                    };
+                }
+            });
+            this.seeks = seeks;
+        }
+
+        @Override
+        protected DirectoryReader doWrapDirectoryReader(DirectoryReader in) throws IOException {
+            return new SeekCountingReader(in, seeks);
+        }
+
+        @Override
+        public CacheHelper getReaderCacheHelper() {
+            return in.getReaderCacheHelper();
+        }
+    }
+
+    @Test
+    public void testNestedSpanQueryUsesCache() throws Exception {
+        Directory directory = TestUtils.index("f", DOCS, new WhitespaceAnalyzer());
+        DirectoryReader reader = DirectoryReader.open(directory);
+        IndexSearcher searcher = new IndexSearcher(reader);
+
+        SpanTermQuery quick = new SpanTermQuery(new Term("f", "quick"));
+        SpanTermQuery fox = new SpanTermQuery(new Term("f", "fox"));
+        SpanTermQuery lazy = new SpanTermQuery(new Term("f", "lazy"));
+        SpanTermQuery dog = new SpanTermQuery(new Term("f", "dog"));
+        SpanTermQuery sleepy = new SpanTermQuery(new Term("f", "sleepy"));
+        SpanTermQuery cat = new SpanTermQuery(new Term("f", "cat"));
+
+        SpanNearQuery qf_near = new SpanNearQuery(new SpanQuery[]{quick, fox}, 1, true);
+        SpanNearQuery qf_near_ld = new SpanNearQuery(
+                new SpanQuery[]{qf_near, new SpanNearQuery(new SpanQuery[]{lazy, dog}, 0, true)}, 3, true);
+        SpanNearQuery qf_near_sc = new SpanNearQuery(
+                new SpanQuery[]{qf_near, new SpanNearQuery(new SpanQuery[]{sleepy, cat}, 0, true)}, 3, true);
+        SpanOrQuery or = new SpanOrQuery(qf_near_ld, qf_near_sc);
+
+        TermContextCache cache = TermContextCache.forReader(reader);
+        assertSame(cache, TermContextCache.forReader(reader));
+
+        Query cached = cache.apply(or);
+        assertEquals(or, cached);
+        // quick and fox are shared by both sides of the span or query
+        assertEquals(6, cache.size());
+        assertSame(cache.get(quick.getTerm()), cache.get(new Term("f", "quick")));
+
+        TopDocs expected = searcher.search(or, 10);
+        TopDocs hits = searcher.search(cached, 10);
+        assertEquals(2, hits.totalHits);
+        assertEquals(expected.totalHits, hits.totalHits);
+
+        // A reopened reader gets its own cache
+        reader.close();
+        reader = DirectoryReader.open(directory);
+        TermContextCache reopened = TermContextCache.forReader(reader);
+        assertNotSame(cache, reopened);
+        assertEquals(0, reopened.size());
+
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void testCacheHitSkipsSeeks() throws Exception {
+        Directory directory = TestUtils.index("f", DOCS, new WhitespaceAnalyzer());
+        AtomicInteger seeks = new AtomicInteger();
+        DirectoryReader reader = new SeekCountingReader(DirectoryReader.open(directory), seeks);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        TermContextCache cache = TermContextCache.forReader(reader);
+        Term fox = new Term("f", "fox");
+
+        // The first lookup seeks the term in every segment
+        TermQuery cached = cache.termQuery(fox);
+        assertEquals(reader.leaves().size(), seeks.get());
+
+        seeks.set(0);
+        assertEquals(2, searcher.search(cached, 10).totalHits);
+        assertEquals(2, searcher.search(cache.termQuery(fox), 10).totalHits);
+        assertEquals(0, seeks.get());
+
+        // Without the cache, every search seeks the term again
+        assertEquals(2, searcher.search(new TermQuery(fox), 10).totalHits);
+        assertEquals(reader.leaves().size(), seeks.get());
+
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        Directory directory = TestUtils.index("f", DOCS, new WhitespaceAnalyzer());
+        DirectoryReader reader = DirectoryReader.open(directory);
+        TermContextCache cache = new TermContextCache(reader, 2);
+
+        TermContext quick = cache.get(new Term("f", "quick"));
+        cache.get(new Term("f", "fox"));
+        // quick is now more recently used than fox
+        assertSame(quick, cache.get(new Term("f", "quick")));
+        cache.get(new Term("f", "dog"));
+        assertEquals(2, cache.size());
+        assertSame(quick, cache.get(new Term("f", "quick")));
+        assertEquals(2, cache.get(new Term("f", "fox")).docFreq());
+        assertEquals(2, cache.size());
+
+        reader.close();
+        directory.close();
+    }
+}
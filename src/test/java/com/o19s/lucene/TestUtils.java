@@ -17,12 +17,16 @@ import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
 
 public class TestUtils {
 
     private static final int END_OF_TOKEN_POSITION = 2147483647;
 
+    // Use the whitespace analyzer in order to count the stop word positions let empty by the standard analuyzer.
+    private static final TokenCache DUMP_TOKEN_CACHE = new TokenCache(new WhitespaceAnalyzer(), 1 << 20);
+
     /**
      * Helper function to create an index and index documents.
      *
@@ -61,6 +65,48 @@ public class TestUtils {
         return directory;
     }
 
+    /**
+     * Helper function to create an index and index documents with a per-field indexing profile.
+     *
+     * @param directory Index directory
+     * @param profile   Indexing profile
+     * @param docs      Documents, as field values by field name
+     * @return The index directory
+     * @throws IOException An exception occurred.
+     */
+    public static Directory index(Directory directory, IndexProfile profile, List<Map<String, String>> docs)
+            throws IOException {
+        IndexWriter iwriter = new IndexWriter(directory, profile.newIndexWriterConfig());
+        for (Map<String, String> doc : docs) {
+            iwriter.addDocument(profile.newDocument(doc));
+        }
+        iwriter.close();
+        return directory;
+    }
+
+    /**
+     * Helper function to bulk load documents with a per-field indexing profile and managed merges.
+     *
+     * @param directory    Index directory
+     * @param config       Index writer configuration, e.g. from {@link IndexProfile#newIndexWriterConfig()}
+     * @param profile      Indexing profile
+     * @param docs         Documents, as field values by field name
+     * @param mergeManager Merge manager, switched to the bulk profile during the load
+     * @return The index directory
+     * @throws IOException An exception occurred.
+     */
+    public static Directory index(Directory directory, IndexWriterConfig config, IndexProfile profile,
+                                  List<Map<String, String>> docs, MergeManager mergeManager) throws IOException {
+        mergeManager.beginBulk();
+        IndexWriter iwriter = new IndexWriter(directory, mergeManager.install(config));
+        for (Map<String, String> doc : docs) {
+            iwriter.addDocument(profile.newDocument(doc));
+        }
+        mergeManager.endBulk(iwriter);
+        iwriter.close();
+        return directory;
+    }
+
     /**
      * Get the spans of a Span query.
      *
@@ -103,10 +149,8 @@ public class TestUtils {
             // See the raw field value
 //            System.out.println(String.format("Doc id %d: %s", doc_id, doc.getField("f")));
 
-            // Get a stream token to scan the field value
-            // Use the whitespace analyzer in order to count the stop word positions let empty by the standard analuyzer.
-            Analyzer wsAnalyzer = new WhitespaceAnalyzer();
-            TokenStream stream = wsAnalyzer.tokenStream("f", new StringReader(doc.get("f")));
+            // Get a stream token to scan the field value, analyzed once per document
+            TokenStream stream = DUMP_TOKEN_CACHE.getTokenStream(reader, doc_id, "f", doc);
             CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
             stream.reset();
             StringBuilder buffer = new StringBuilder();
@@ -0,0 +1,200 @@
+package com.o19s.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.highlight.Highlighter;
+import org.apache.lucene.search.highlight.QueryScorer;
+import org.apache.lucene.search.highlight.SimpleSpanFragmenter;
+import org.apache.lucene.search.highlight.TokenSources;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.store.Directory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TokenCacheTest {
+
+    private static final String[] DOCS = {
+            "the quick brown fox jumps over the lazy dog",
+            "the quick red fox jumps over the sleepy cat",
+            "The lazy dog sleeps, and the quick fox doesn't"
+    };
+
+    private static List<String> tokens(TokenStream stream) throws IOException {
+        CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+        PositionIncrementAttribute positionIncrement = stream.addAttribute(PositionIncrementAttribute.class);
+        OffsetAttribute offset = stream.addAttribute(OffsetAttribute.class);
+        List<String> tokens = new ArrayList<>();
+        stream.reset();
+        while (stream.incrementToken()) {
+            tokens.add(String.format("%s+%d[%d,%d)", term, positionIncrement.getPositionIncrement(),
+                    offset.startOffset(), offset.endOffset()));
+        }
+        stream.end();
+        tokens.add(String.format("end[%d]", offset.endOffset()));
+        stream.close();
+        return tokens;
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        Analyzer analyzer = new StandardAnalyzer();
+        Directory directory = TestUtils.index("f", DOCS, analyzer);
+        DirectoryReader reader = DirectoryReader.open(directory);
+        TokenCache cache = new TokenCache(analyzer, 1 << 20);
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (int doc = 0; doc < DOCS.length; doc++) {
+                Document document = reader.document(doc);
+                List<String> expected = tokens(analyzer.tokenStream("f", document.get("f")));
+                assertEquals(expected, tokens(cache.getTokenStream(reader, doc, "f", document)));
+            }
+        }
+        System.out.println(String.format("Cache: %s, %d bytes", cache, cache.ramBytesUsed()));
+        assertEquals(DOCS.length, cache.size());
+        assertEquals(DOCS.length, cache.getMisses());
+        assertEquals(DOCS.length, cache.getHits());
+        assertNull(cache.getTokenStream(reader, 0, "unknown", reader.document(0)));
+
+        reader.close();
+        // The entries are dropped with their segment
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getEntriesBytes());
+        directory.close();
+    }
+
+    @Test
+    public void testEvictionByMemory() throws Exception {
+        Analyzer analyzer = new StandardAnalyzer();
+        String[] docs = new String[100];
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = String.format("document %d of the quick brown fox jumps over the lazy dog", i);
+        }
+        Directory directory = TestUtils.index("f", docs, analyzer);
+        DirectoryReader reader = DirectoryReader.open(directory);
+        TokenCache cache = new TokenCache(analyzer, 8192);
+
+        for (int doc = 0; doc < docs.length; doc++) {
+            tokens(cache.getTokenStream(reader, doc, "f", reader.document(doc)));
+            assertTrue(cache.ramBytesUsed() <= 8192);
+        }
+        System.out.println(String.format("Cache: %s", cache));
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.size() < docs.length);
+        assertEquals(0, cache.getDictionaryResets());
+
+        // The most recently used entries are kept
+        tokens(cache.getTokenStream(reader, docs.length - 1, "f", reader.document(docs.length - 1)));
+        assertEquals(1, cache.getHits());
+
+        reader.close();
+        directory.close();
+    }
+
+    /**
+     * The dictionary counts against the budget: it's started over once the entries alone can't make room for it.
+     */
+    @Test
+    public void testDictionaryReset() throws Exception {
+        Analyzer analyzer = new StandardAnalyzer();
+        String[] docs = new String[100];
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = String.format("document %d of the quick brown fox jumps over the lazy dog %d", i, i * 31);
+        }
+        Directory directory = TestUtils.index("f", docs, analyzer);
+        DirectoryReader reader = DirectoryReader.open(directory);
+        TokenCache cache = new TokenCache(analyzer, 1024);
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (int doc = 0; doc < docs.length; doc++) {
+                Document document = reader.document(doc);
+                List<String> expected = tokens(analyzer.tokenStream("f", document.get("f")));
+                assertEquals(expected, tokens(cache.getTokenStream(reader, doc, "f", document)));
+                assertTrue(cache.ramBytesUsed() <= 1024);
+            }
+        }
+        System.out.println(String.format("Cache: %s, %d dictionary resets", cache, cache.getDictionaryResets()));
+        assertTrue(cache.getDictionaryResets() > 0);
+
+        reader.close();
+        directory.close();
+    }
+
+    /**
+     * The classic highlighter produces the same fragments from the cached tokens.
+     */
+    @Test
+    public void testClassicHighlighter() throws Exception {
+        Analyzer analyzer = new StandardAnalyzer();
+        Directory directory = TestUtils.index("f", DOCS, analyzer);
+        DirectoryReader reader = DirectoryReader.open(directory);
+        TokenCache cache = new TokenCache(analyzer, 1 << 20);
+
+        SpanQuery query = new SpanNearQuery(new SpanQuery[]{
+                new SpanTermQuery(new Term("f", "quick")), new SpanTermQuery(new Term("f", "fox"))}, 1, true);
+        QueryScorer scorer = new QueryScorer(query, "f");
+        Highlighter highlighter = new Highlighter(scorer);
+        highlighter.setTextFragmenter(new SimpleSpanFragmenter(scorer));
+
+        for (int doc = 0; doc < DOCS.length; doc++) {
+            Document document = reader.document(doc);
+            String expected = highlighter.getBestFragment(analyzer, "f", document.get("f"));
+            String actual = highlighter.getBestFragment(cache.getTokenStream(reader, doc, "f", document),
+                    document.get("f"));
+            System.out.println(String.format("Doc %d: %s", doc, actual));
+            assertEquals(expected, actual);
+        }
+        assertEquals(DOCS.length, cache.getMisses());
+
+        reader.close();
+        directory.close();
+    }
+
+    /**
+     * The span highlighter replays the cached tokens of the hits when the postings don't store offsets.
+     */
+    @Test
+    public void testSpanHighlighter() throws Exception {
+        Analyzer analyzer = new StandardAnalyzer();
+        Directory directory = TestUtils.index("f", DOCS, analyzer);
+        DirectoryReader reader = DirectoryReader.open(directory);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        TokenCache cache = new TokenCache(analyzer, 1 << 20);
+        SpanHighlighter cached = HighlighterFactory.newSpanHighlighter(analyzer, cache);
+        SpanHighlighter uncached = new SpanHighlighter(analyzer, "<b>", "</b>", 100);
+
+        SpanQuery query = new SpanNearQuery(new SpanQuery[]{
+                new SpanTermQuery(new Term("f", "quick")), new SpanTermQuery(new Term("f", "fox"))}, 1, true);
+        for (int pass = 0; pass < 2; pass++) {
+            SpanMatchCollector collector = new SpanMatchCollector(10);
+            searcher.search(collector.wrap(query), collector);
+            TopDocs topDocs = collector.topDocs();
+            String[] expected = uncached.highlight("f", searcher, collector, topDocs, 3);
+            String[] actual = cached.highlight("f", searcher, collector, topDocs, 3);
+            System.out.println(String.format("Pass %d: %s, %s", pass, Arrays.toString(actual), cache));
+            assertEquals(DOCS.length, topDocs.scoreDocs.length);
+            assertArrayEquals(expected, actual);
+        }
+        assertEquals(DOCS.length, cache.getMisses());
+        assertEquals(DOCS.length, cache.getHits());
+
+        reader.close();
+        directory.close();
+    }
+}